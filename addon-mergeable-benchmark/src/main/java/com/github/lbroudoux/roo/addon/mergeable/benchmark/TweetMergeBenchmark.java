@@ -0,0 +1,217 @@
+package com.github.lbroudoux.roo.addon.mergeable.benchmark;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.lbroudoux.roo.addon.mergeable.domain.Tweet;
+
+/**
+ * Benchmarks of the merge methods generated into {@link Tweet}, against the embedded HSQLDB database of the
+ * test project. Entities to merge are persisted (and committed) before each invocation so that only merges
+ * are measured, they are deleted at the end of each iteration so that tables do not grow along the run and 
+ * slow down later iterations. Throughput and sampled latencies (with percentiles) are reported.
+ * 
+ * @since 1.1.0
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TweetMergeBenchmark {
+
+   private static final AtomicInteger COUNTER = new AtomicInteger();
+   
+   /** 
+    * Spring context of the test project, started once for the whole run. Tweets created during an iteration are 
+    * deleted once it is over, tweets created by trial setups are kept.
+    */
+   @State(Scope.Benchmark)
+   public static class Database {
+      private ClassPathXmlApplicationContext context;
+      private Long lastId;
+      
+      @Setup(Level.Trial)
+      public void start() {
+         context = new ClassPathXmlApplicationContext("classpath*:META-INF/spring/applicationContext*.xml");
+      }
+      
+      @Setup(Level.Iteration)
+      public void mark() {
+         lastId = Tweet.entityManager().createQuery("SELECT COALESCE(MAX(o.id), 0) FROM Tweet o", Long.class).getSingleResult();
+      }
+      
+      @TearDown(Level.Iteration)
+      public void clean() {
+         new TransactionTemplate(context.getBean(PlatformTransactionManager.class)).execute(new TransactionCallbackWithoutResult() {
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+               // References between tweets are removed first.
+               EntityManager em = Tweet.entityManager();
+               em.createQuery("UPDATE Tweet o SET o.original = NULL, o.mergeResult = NULL, o.mergeRoot = NULL, " 
+                     + "o.mergeMainReference = NULL, o.mergeSecondReference = NULL WHERE o.id > :lastId")
+                     .setParameter("lastId", lastId).executeUpdate();
+               em.createQuery("DELETE FROM Tweet o WHERE o.id > :lastId").setParameter("lastId", lastId).executeUpdate();
+            }
+         });
+      }
+      
+      @TearDown(Level.Trial)
+      public void stop() {
+         context.close();
+      }
+   }
+   
+   /** Two fresh tweets to merge. */
+   @State(Scope.Thread)
+   public static class Pair {
+      private Tweet main;
+      private Tweet second;
+      
+      @Setup(Level.Invocation)
+      public void persist(Database database) {
+         main = newTweet();
+         second = newTweet();
+      }
+   }
+   
+   /** Fresh tweets to merge one after the other, each merge result being merged with the next tweet. */
+   @State(Scope.Thread)
+   public static class Chain {
+      @Param({ "2", "8" })
+      private int chainLength;
+      private List<Tweet> tweets;
+      
+      @Setup(Level.Invocation)
+      public void persist(Database database) {
+         tweets = newTweets(chainLength);
+      }
+   }
+   
+   /** A lineage built once, whose root is the result of chained merges. */
+   @State(Scope.Benchmark)
+   public static class Lineage {
+      @Param({ "4", "16", "64" })
+      private int lineageDepth;
+      private Long rootId;
+      
+      @Setup(Level.Trial)
+      public void persist(Database database) {
+         rootId = chainMerges(newTweets(lineageDepth + 1)).getId();
+      }
+   }
+   
+   /** Fresh pairs of tweets for bulk merges. */
+   @State(Scope.Thread)
+   public static class Batch {
+      @Param({ "100" })
+      private int batchSize;
+      private List<Entry<Tweet, Tweet>> pairs;
+      private List<List<Tweet>> groups;
+      
+      @Setup(Level.Invocation)
+      public void persist(Database database) {
+         pairs = new ArrayList<Entry<Tweet, Tweet>>(batchSize);
+         groups = new ArrayList<List<Tweet>>(batchSize);
+         for (int i = 0; i < batchSize; i++){
+            List<Tweet> group = newTweets(2);
+            pairs.add(new SimpleEntry<Tweet, Tweet>(group.get(0), group.get(1)));
+            groups.add(group);
+         }
+      }
+   }
+   
+   /** Fresh tweets merged at once into a single result. */
+   @State(Scope.Thread)
+   public static class Group {
+      @Param({ "2", "10", "50" })
+      private int groupSize;
+      private Tweet main;
+      private List<Tweet> others;
+      
+      @Setup(Level.Invocation)
+      public void persist(Database database) {
+         List<Tweet> tweets = newTweets(groupSize);
+         main = tweets.get(0);
+         others = tweets.subList(1, tweets.size());
+      }
+   }
+   
+   @Benchmark
+   public Tweet pairwiseMerge(Pair pair) {
+      return pair.main.merge(pair.second);
+   }
+   
+   @Benchmark
+   public Tweet chainedMerge(Chain chain) {
+      return chainMerges(chain.tweets);
+   }
+   
+   @Benchmark
+   public List<Tweet> lineageNavigation(Lineage lineage) {
+      return Tweet.findMergeAncestors(lineage.rootId);
+   }
+   
+   @Benchmark
+   public Tweet listMerge(Group group) {
+      return group.main.merge(group.others);
+   }
+   
+   @Benchmark
+   public List<Tweet> bulkMergeAll(Batch batch) {
+      return Tweet.mergeAll(batch.pairs);
+   }
+   
+   @Benchmark
+   public List<Tweet> bulkMergeAllInParallel(Batch batch) {
+      return Tweet.mergeAllInParallel(batch.groups, 4);
+   }
+   
+   private static Tweet newTweet() {
+      Tweet tweet = new Tweet();
+      tweet.setAuthor("author_" + COUNTER.incrementAndGet());
+      tweet.setContent("content_" + COUNTER.get());
+      tweet.persist();
+      return tweet;
+   }
+   
+   private static List<Tweet> newTweets(int count) {
+      List<Tweet> tweets = new ArrayList<Tweet>(count);
+      for (int i = 0; i < count; i++){
+         tweets.add(newTweet());
+      }
+      return tweets;
+   }
+   
+   private static Tweet chainMerges(List<Tweet> tweets) {
+      Tweet merge = tweets.get(0);
+      for (int i = 1; i < tweets.size(); i++){
+         merge = merge.merge(tweets.get(i));
+      }
+      return merge;
+   }
+}
@@ -0,0 +1,31 @@
+package com.github.lbroudoux.roo.addon.mergeable.domain;
+
+import com.github.lbroudoux.roo.addon.mergeable.MergeStrategy;
+import com.github.lbroudoux.roo.addon.mergeable.RooMergeable;
+import com.github.lbroudoux.roo.addon.mergeable.RooMergeableField;
+import com.github.lbroudoux.roo.addon.mergeable.merge.MergeLink;
+
+import java.util.Set;
+import javax.persistence.ManyToMany;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import org.springframework.roo.addon.javabean.RooJavaBean;
+import org.springframework.roo.addon.jpa.activerecord.RooJpaActiveRecord;
+import org.springframework.roo.addon.tostring.RooToString;
+
+@RooJavaBean
+@RooToString
+@RooJpaActiveRecord
+@RooMergeable(matchOn = { "author" }, storage = "LINK_TABLE", linkEntity = MergeLink.class)
+public class Post {
+
+    @NotNull
+    String author;
+
+    @Size(max = 140)
+    @RooMergeableField(strategy = MergeStrategy.LONGEST)
+    String content;
+
+    @ManyToMany
+    Set<Tag> tags;
+}
@@ -0,0 +1,15 @@
+package com.github.lbroudoux.roo.addon.mergeable.domain;
+
+import javax.validation.constraints.NotNull;
+import org.springframework.roo.addon.javabean.RooJavaBean;
+import org.springframework.roo.addon.jpa.activerecord.RooJpaActiveRecord;
+import org.springframework.roo.addon.tostring.RooToString;
+
+@RooJavaBean
+@RooToString
+@RooJpaActiveRecord
+public class Tag {
+
+    @NotNull
+    String name;
+}
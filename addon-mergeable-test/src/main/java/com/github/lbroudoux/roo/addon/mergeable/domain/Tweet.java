@@ -1,12 +1,16 @@
 package com.github.lbroudoux.roo.addon.mergeable.domain;
 
+import com.github.lbroudoux.roo.addon.mergeable.MergeStrategy;
 import com.github.lbroudoux.roo.addon.mergeable.RooMergeable;
+import com.github.lbroudoux.roo.addon.mergeable.RooMergeableField;
+import com.github.lbroudoux.roo.addon.mergeable.merge.MergeMetricsListener;
 
 import java.util.Set;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
+import org.hibernate.annotations.Index;
 import org.springframework.roo.addon.javabean.RooJavaBean;
 import org.springframework.roo.addon.jpa.activerecord.RooJpaActiveRecord;
 import org.springframework.roo.addon.tostring.RooToString;
@@ -14,18 +18,20 @@ import org.springframework.roo.addon.tostring.RooToString;
 @RooJavaBean
 @RooToString
 @RooJpaActiveRecord
-@RooMergeable
+@RooMergeable(matchOn = { "author" }, metricsListener = MergeMetricsListener.class, live = true)
 public class Tweet {
 
     @NotNull
     String author;
 
     @Size(max = 140)
+    @RooMergeableField(strategy = MergeStrategy.LONGEST)
     String content;
 
     @OneToMany(mappedBy = "original")
     Set<Tweet> retweets;
 
     @ManyToOne
+    @Index(name = "tweet_original_idx")
     Tweet original;
 }
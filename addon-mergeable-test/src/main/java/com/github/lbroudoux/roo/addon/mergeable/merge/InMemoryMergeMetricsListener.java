@@ -0,0 +1,153 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link MergeMetricsListener} keeping counters and latency histograms in memory, for all entity types.
+ * Latencies are counted into buckets of powers of 2 microseconds, so that percentiles are known with a
+ * precision of a factor 2 without storing each measure. All methods are thread safe and lock free.
+ */
+public class InMemoryMergeMetricsListener implements MergeMetricsListener {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLongArray mergeLatencies = new AtomicLongArray(BUCKETS);
+    private final ConcurrentMap<String, AtomicLongArray> phaseLatencies = new ConcurrentHashMap<String, AtomicLongArray>();
+    private final ConcurrentMap<String, AtomicLong> phaseNanos = new ConcurrentHashMap<String, AtomicLong>();
+
+    public void phaseCompleted(Class<?> entityType, String phase, long nanos, int rows) {
+        getOrCreate(phaseNanos, phase).addAndGet(nanos);
+        getOrCreateHistogram(phase).incrementAndGet(getBucket(nanos));
+        this.rows.addAndGet(rows);
+        if (FLUSH.equals(phase)) {
+            flushes.incrementAndGet();
+        }
+    }
+
+    public void mergeCompleted(Class<?> entityType, int merges, long nanos) {
+        calls.incrementAndGet();
+        this.merges.addAndGet(merges);
+        mergeLatencies.incrementAndGet(getBucket(nanos));
+    }
+
+    /** @return the number of completed merge method calls */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /** @return the number of merge results produced */
+    public long getMergeCount() {
+        return merges.get();
+    }
+
+    /** @return the number of rows inserted or updated by merges */
+    public long getRowsTouched() {
+        return rows.get();
+    }
+
+    /** @return the number of persistence context flushes done by merges */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * @param phase A phase constant of {@link MergeMetricsListener}
+     * @return the total time spent into phase, in nanoseconds
+     */
+    public long getPhaseNanos(String phase) {
+        AtomicLong nanos = phaseNanos.get(phase);
+        return nanos != null ? nanos.get() : 0L;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @return the upper bound in nanoseconds of the latency of the given percentile of merge method calls
+     */
+    public long getMergeLatencyPercentile(double percentile) {
+        return getPercentile(mergeLatencies, percentile);
+    }
+
+    /**
+     * @param phase A phase constant of {@link MergeMetricsListener}
+     * @param percentile The percentile, between 0 and 100
+     * @return the upper bound in nanoseconds of the latency of the given percentile of phase
+     */
+    public long getPhaseLatencyPercentile(String phase, double percentile) {
+        AtomicLongArray histogram = phaseLatencies.get(phase);
+        return histogram != null ? getPercentile(histogram, percentile) : 0L;
+    }
+
+    /** Reset all counters and histograms. */
+    public void reset() {
+        calls.set(0);
+        merges.set(0);
+        rows.set(0);
+        flushes.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            mergeLatencies.set(i, 0);
+        }
+        phaseLatencies.clear();
+        phaseNanos.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("calls=").append(getCallCount()).append(", merges=").append(getMergeCount())
+                .append(", rows=").append(getRowsTouched()).append(", flushes=").append(getFlushCount())
+                .append(", p50=").append(getMergeLatencyPercentile(50)).append("ns, p99=").append(getMergeLatencyPercentile(99)).append("ns");
+        for (String phase : phaseNanos.keySet()) {
+            result.append(", ").append(phase).append("=").append(getPhaseNanos(phase)).append("ns");
+        }
+        return result.toString();
+    }
+
+    private AtomicLongArray getOrCreateHistogram(String phase) {
+        AtomicLongArray histogram = phaseLatencies.get(phase);
+        if (histogram == null) {
+            phaseLatencies.putIfAbsent(phase, new AtomicLongArray(BUCKETS));
+            histogram = phaseLatencies.get(phase);
+        }
+        return histogram;
+    }
+
+    private static AtomicLong getOrCreate(ConcurrentMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            counters.putIfAbsent(key, new AtomicLong());
+            counter = counters.get(key);
+        }
+        return counter;
+    }
+
+    /** @return the bucket of a latency: bucket i counts latencies lower than 2^i microseconds */
+    private static int getBucket(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long getPercentile(AtomicLongArray histogram, double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts[i];
+            if (count >= threshold && count > 0) {
+                return (1L << i) * 1000;
+            }
+        }
+        return 0L;
+    }
+}
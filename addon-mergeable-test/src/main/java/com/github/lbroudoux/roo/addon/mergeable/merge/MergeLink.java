@@ -0,0 +1,103 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Merge lineage of entities annotated with @RooMergeable(storage = "LINK_TABLE", linkEntity = MergeLink.class):
+ * each row links a merged source to its merge result. Entities are referenced by type and identifier, without
+ * foreign keys, so that a single table serves all mergeable entities.
+ * A source can only be merged once. The other unique constraints are implied by the first one, they are only
+ * declared for getting indexes on merge results and roots from any JPA provider. The root of a link is the
+ * current merge result of its source, it is kept up to date when the result is merged in turn. Identifiers are
+ * allocated by blocks so that links can be inserted in JDBC batches.
+ */
+@Entity
+@Table(name = "merge_link", uniqueConstraints = {
+        @UniqueConstraint(columnNames = { "entity_type", "source_id" }),
+        @UniqueConstraint(columnNames = { "entity_type", "result_id", "source_id" }),
+        @UniqueConstraint(columnNames = { "entity_type", "root_id", "source_id" }) })
+public class MergeLink {
+
+    /** Role of the first source of a merge. */
+    public static final String MAIN = "MAIN";
+
+    /** Role of the second source of a merge. */
+    public static final String SECOND = "SECOND";
+
+    /** Role of other sources of a merge. */
+    public static final String SOURCE = "SOURCE";
+
+    @Id
+    @TableGenerator(name = "merge_link_id", allocationSize = 100)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "merge_link_id")
+    private Long id;
+
+    @Column(name = "entity_type", nullable = false, length = 64)
+    private String entityType;
+
+    @Column(name = "source_id", nullable = false)
+    private Long sourceId;
+
+    @Column(name = "result_id", nullable = false)
+    private Long resultId;
+
+    @Column(name = "root_id", nullable = false)
+    private Long rootId;
+
+    @Column(name = "role", nullable = false, length = 6)
+    private String role;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "merged_at", nullable = false)
+    private Date mergedAt;
+
+    protected MergeLink() {
+    }
+
+    public MergeLink(String entityType, Long sourceId, Long resultId, String role, Date mergedAt) {
+        this.entityType = entityType;
+        this.sourceId = sourceId;
+        this.resultId = resultId;
+        this.rootId = resultId;
+        this.role = role;
+        this.mergedAt = mergedAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public Long getSourceId() {
+        return sourceId;
+    }
+
+    public Long getResultId() {
+        return resultId;
+    }
+
+    public Long getRootId() {
+        return rootId;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public Date getMergedAt() {
+        return mergedAt;
+    }
+}
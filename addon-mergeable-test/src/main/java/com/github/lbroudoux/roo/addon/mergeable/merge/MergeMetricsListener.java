@@ -0,0 +1,39 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+/**
+ * Listener merges of entities annotated with @RooMergeable(metricsListener = MergeMetricsListener.class) are
+ * reported to, once registered using the static setMergeMetricsListener() method of each entity. Nothing is
+ * reported (and the clock is not even read) while no listener is registered. Listeners are called by the
+ * merging threads, within merge transactions: they should be thread safe and return quickly.
+ */
+public interface MergeMetricsListener {
+
+    /** Phase of merging fields of sources into the merge result. */
+    String FIELDS = "fields";
+
+    /** Phase of persisting the merge result. */
+    String PERSIST = "persist";
+
+    /** Phase of flushing the persistence context, once for all the merges of a call. */
+    String FLUSH = "flush";
+
+    /** Phase of marking sources as merged and re-parenting their children. */
+    String MARK = "mark";
+
+    /**
+     * Called when a phase of a merge is completed.
+     * @param entityType The type of merged entities
+     * @param phase The completed phase, one of the constants of this interface
+     * @param nanos The duration of the phase in nanoseconds
+     * @param rows The number of rows inserted or updated by the phase, 0 if not known until flushed
+     */
+    void phaseCompleted(Class<?> entityType, String phase, long nanos, int rows);
+
+    /**
+     * Called when a merge method is completed, before its transaction is committed.
+     * @param entityType The type of merged entities
+     * @param merges The number of merge results produced by the method
+     * @param nanos The duration of the method in nanoseconds
+     */
+    void mergeCompleted(Class<?> entityType, int merges, long nanos);
+}
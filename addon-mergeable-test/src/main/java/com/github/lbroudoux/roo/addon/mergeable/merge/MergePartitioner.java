@@ -0,0 +1,30 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.springframework.batch.core.partition.support.Partitioner;
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * A {@link Partitioner} of merge jobs. Each partition only gets its index and the number of partitions: merge
+ * candidate readers use them for reading the groups of their partition only, so that partitions never share a source.
+ */
+public class MergePartitioner implements Partitioner {
+
+    /** Key of the partition index in the execution context of partitions. */
+    public static final String PARTITION = "partition";
+
+    /** Key of the number of partitions in the execution context of partitions. */
+    public static final String PARTITIONS = "partitions";
+
+    public Map<String, ExecutionContext> partition(int gridSize) {
+        Map<String, ExecutionContext> contexts = new HashMap<String, ExecutionContext>(gridSize);
+        for (int i = 0; i < gridSize; i++) {
+            ExecutionContext context = new ExecutionContext();
+            context.putInt(PARTITION, i);
+            context.putInt(PARTITIONS, gridSize);
+            contexts.put(PARTITION + i, context);
+        }
+        return contexts;
+    }
+}
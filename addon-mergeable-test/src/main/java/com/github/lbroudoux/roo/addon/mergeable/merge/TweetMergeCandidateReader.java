@@ -0,0 +1,65 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import com.github.lbroudoux.roo.addon.mergeable.domain.Tweet;
+import java.util.LinkedList;
+import java.util.List;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamReader;
+
+/**
+ * Reads the candidate groups of Tweet merges of a partition, one page at a time. Each page is read from the key
+ * of the last group of the previous page, so that the database only groups the entities left. Merged sources leave
+ * candidate groups: once a chunk is committed, groups before the position of the reader are merged and a restarted
+ * job goes on from the first group left unmerged, without any state saved into the execution context. This requires
+ * the page size to be equal to the commit interval of the step, and every group read to be merged.
+ */
+public class TweetMergeCandidateReader implements ItemStreamReader<List<Tweet>> {
+
+    private final LinkedList<List<Tweet>> page = new LinkedList<List<Tweet>>();
+    private int pageSize = 100;
+    private int partition = 0;
+    private int partitions = 1;
+    private Tweet after;
+    private boolean exhausted;
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setPartition(int partition) {
+        this.partition = partition;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public List<Tweet> read() {
+        if (page.isEmpty() && !exhausted) {
+            page.addAll(Tweet.findMergeCandidates(after, pageSize, partition, partitions));
+            if (!page.isEmpty()) {
+                after = page.getLast().get(0);
+            }
+            // A partial page is the last one: reading again before commit would return the same groups.
+            exhausted = page.size() < pageSize;
+        }
+        if (page.isEmpty()) {
+            return null;
+        }
+        return page.removeFirst();
+    }
+
+    public void open(ExecutionContext executionContext) {
+        after = null;
+        exhausted = false;
+        page.clear();
+    }
+
+    public void update(ExecutionContext executionContext) {
+        // Nothing to save: groups before the position of the reader are merged once committed.
+    }
+
+    public void close() {
+        page.clear();
+    }
+}
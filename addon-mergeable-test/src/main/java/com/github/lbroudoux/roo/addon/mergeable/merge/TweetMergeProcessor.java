@@ -0,0 +1,25 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import com.github.lbroudoux.roo.addon.mergeable.domain.Tweet;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.batch.item.ItemProcessor;
+
+/**
+ * Turns a candidate group of Tweet into the identifiers of its sources, main source first, as expected by the
+ * generated mergeGroupsByIds(). Groups must not be filtered out, as unmerged groups would be read again: a group that
+ * should not be merged has to be rejected with an exception, failing the step that can be restarted once fixed.
+ */
+public class TweetMergeProcessor implements ItemProcessor<List<Tweet>, List<Long>> {
+
+    public List<Long> process(List<Tweet> group) {
+        if (group.size() < 2) {
+            throw new IllegalArgumentException("A merge group must hold at least 2 Tweet");
+        }
+        List<Long> ids = new ArrayList<Long>(group.size());
+        for (Tweet source : group) {
+            ids.add(source.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import com.github.lbroudoux.roo.addon.mergeable.domain.Tweet;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.batch.item.ItemWriter;
+
+/**
+ * Merges a chunk of Tweet groups with a single call to the generated mergeGroupsByIds(): sources are loaded with
+ * one query and flushed together, within the transaction of the chunk so that merges are committed with the step
+ * checkpoint.
+ */
+public class TweetMergeWriter implements ItemWriter<List<Long>> {
+
+    public void write(List<? extends List<Long>> idGroups) {
+        Tweet.mergeGroupsByIds(new ArrayList<List<Long>>(idGroups));
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.lbroudoux.roo.addon.mergeable.domain;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.roo.addon.dod.RooDataOnDemand;
+
+@RooDataOnDemand(entity = Post.class)
+public class PostDataOnDemand {
+
+   /** Sequence making authors and contents of unique posts distinct from any other post. */
+   private final AtomicInteger uniqueIndex = new AtomicInteger();
+   
+   /**
+    * Create a new transient post whose author and content are not shared with any other post, so that tests
+    * only see duplicates they've created on purpose.
+    * @return The new post
+    */
+   public Post getNewUniquePost() {
+      int index = uniqueIndex.incrementAndGet();
+      Post obj = getNewTransientPost(index);
+      obj.setAuthor("unique_author_" + index);
+      obj.setContent("unique_content_" + index);
+      return obj;
+   }
+}
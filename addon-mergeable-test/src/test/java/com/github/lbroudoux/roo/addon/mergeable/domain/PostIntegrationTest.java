@@ -0,0 +1,263 @@
+package com.github.lbroudoux.roo.addon.mergeable.domain;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+
+import javax.persistence.OptimisticLockException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.roo.addon.test.RooIntegrationTest;
+
+/**
+ * Run lineage, finders and chunked merges against a mergeable entity using "LINK_TABLE" storage, 
+ * lineage being read from MergeLink rows instead of columns of the entity.
+ */
+@RooIntegrationTest(entity = Post.class)
+public class PostIntegrationTest {
+
+   @Autowired
+   private PostDataOnDemand dod;
+   
+   @Test
+   public void testMergeableMethod() {
+      Post obj1 = dod.getNewUniquePost();
+      obj1.setContent(null);
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.persist();
+      
+      // Merge and check references tracking through links.
+      Post merge = obj1.merge(obj2);
+      Assert.assertEquals(obj1, merge.getMergeMainReference());
+      Assert.assertEquals(obj2, merge.getMergeSecondReference());
+      Assert.assertEquals(merge, obj1.getMergeResult());
+      Assert.assertEquals(merge, obj2.getMergeResult());
+      Assert.assertNull(merge.getMergeResult());
+      
+      // Check verification methods.
+      Assert.assertTrue(merge.isMergeResult());
+      Assert.assertFalse(obj1.isMergeResult());
+      Assert.assertFalse(merge.wasMerged());
+      Assert.assertTrue(obj1.wasMerged());
+      Assert.assertTrue(obj2.wasMerged());
+      
+      // Check value merging.
+      Assert.assertEquals(obj1.getAuthor(), merge.getAuthor());
+      Assert.assertEquals(obj2.getContent(), merge.getContent());
+   }
+   
+   @Test
+   public void testMergeListMethod() {
+      Post obj1 = dod.getNewUniquePost();
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.persist();
+      Post obj3 = dod.getNewUniquePost();
+      obj3.setContent("Longest content of merged posts");
+      obj3.persist();
+      
+      // Merge and check merged sources finders.
+      Post merge = obj1.merge(Arrays.asList(obj2, obj3));
+      Assert.assertEquals(obj3.getContent(), merge.getContent());
+      Assert.assertEquals(merge, obj3.getMergeResult());
+      Assert.assertEquals(3, Post.countMergedSources(merge));
+      Assert.assertTrue(Post.findPostsByMergeResult(merge).containsAll(Arrays.asList(obj1, obj2, obj3)));
+      Assert.assertEquals(1, Post.findPostsByMergeResult(merge, 2, 10).size());
+   }
+   
+   @Test
+   public void testMergeTagsUnion() {
+      Tag tag1 = newTag("tag1");
+      Tag tag2 = newTag("tag2");
+      Tag tag3 = newTag("tag3");
+      Post obj1 = dod.getNewUniquePost();
+      obj1.setTags(new HashSet<Tag>(Arrays.asList(tag1, tag2)));
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.setTags(new HashSet<Tag>(Arrays.asList(tag2, tag3)));
+      obj2.persist();
+      
+      // Tags shared by sources are associated only once to the merge result.
+      Post merge = obj1.merge(obj2);
+      merge.flush();
+      merge.clear();
+      Assert.assertEquals(3, Post.findPost(merge.getId()).getTags().size());
+      
+      // Many-to-many rows are added for the merge result, sources keep their own tags.
+      Assert.assertEquals(2, Post.findPost(obj1.getId()).getTags().size());
+      Assert.assertEquals(2, Post.findPost(obj2.getId()).getTags().size());
+      Assert.assertEquals(Long.valueOf(3), Post.entityManager().createQuery("SELECT COUNT(o) FROM Post o JOIN o.tags t WHERE t.id = :tag", 
+            Long.class).setParameter("tag", tag2.getId()).getSingleResult());
+   }
+   
+   @Test
+   public void testAnalyzeTagsConflicts() {
+      Tag tag1 = newTag("tag1");
+      Tag tag2 = newTag("tag2");
+      Tag tag3 = newTag("tag3");
+      Post obj1 = dod.getNewUniquePost();
+      obj1.setTags(new HashSet<Tag>(Arrays.asList(tag1, tag2)));
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.setTags(new HashSet<Tag>(Arrays.asList(tag2, tag3)));
+      obj2.persist();
+      Post obj3 = dod.getNewUniquePost();
+      obj3.setTags(new HashSet<Tag>(Arrays.asList(tag2)));
+      obj3.persist();
+      
+      // Tags of first pair diverge, tags of second pair are all held by its main post.
+      List<Entry<Post, Post>> pairs = new ArrayList<Entry<Post, Post>>();
+      pairs.add(new SimpleEntry<Post, Post>(obj1, obj2));
+      pairs.add(new SimpleEntry<Post, Post>(obj1, obj3));
+      Assert.assertEquals(Integer.valueOf(1), Post.analyzeConflicts(pairs).get("tags"));
+   }
+   
+   @Test
+   public void testMergeRefusesMergedSources() {
+      Post obj1 = dod.getNewUniquePost();
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.persist();
+      Post obj3 = dod.getNewUniquePost();
+      obj3.persist();
+      
+      // The unique link of a source forbids merging it twice.
+      Post merge = obj1.merge(obj2);
+      try {
+         obj1.merge(obj3);
+         Assert.fail("Merging an already merged Post should have failed");
+      } catch (OptimisticLockException e){
+         Assert.assertEquals(merge, obj1.getMergeResult());
+      }
+   }
+   
+   @Test
+   public void testMergeAllMethod() {
+      List<Entry<Post, Post>> pairs = new ArrayList<Entry<Post, Post>>();
+      for (int i = 0; i < 3; i++){
+         Post main = dod.getNewUniquePost();
+         main.setContent(null);
+         main.persist();
+         Post second = dod.getNewUniquePost();
+         second.persist();
+         pairs.add(new SimpleEntry<Post, Post>(main, second));
+      }
+      
+      // Merge using chunks smaller than the number of pairs, chunks join the test transaction.
+      List<Post> merges = Post.mergeAll(pairs, 2);
+      Assert.assertEquals(3, merges.size());
+      for (int i = 0; i < 3; i++){
+         Post merge = merges.get(i);
+         Assert.assertEquals(pairs.get(i).getKey().getAuthor(), merge.getAuthor());
+         Assert.assertEquals(pairs.get(i).getValue().getContent(), merge.getContent());
+         Assert.assertEquals(merge, pairs.get(i).getKey().getMergeResult());
+         Assert.assertEquals(merge, pairs.get(i).getValue().getMergeResult());
+      }
+   }
+   
+   @Test
+   public void testFindMergeAncestorsMethod() {
+      Post obj1 = dod.getNewUniquePost();
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.persist();
+      Post obj3 = dod.getNewUniquePost();
+      obj3.persist();
+      
+      // Build a two levels lineage.
+      Post merge1 = obj1.merge(obj2);
+      Post merge2 = merge1.merge(obj3);
+      
+      List<Post> ancestors = Post.findMergeAncestors(merge2.getId());
+      Assert.assertEquals(4, ancestors.size());
+      Assert.assertTrue(ancestors.containsAll(Arrays.asList(obj1, obj2, obj3, merge1)));
+      
+      List<Post> leaves = Post.findMergeLeaves(merge2.getId());
+      Assert.assertEquals(3, leaves.size());
+      Assert.assertTrue(leaves.containsAll(Arrays.asList(obj1, obj2, obj3)));
+      Assert.assertTrue(Post.findMergeAncestors(obj1.getId()).isEmpty());
+      Assert.assertTrue(Post.findMergeLeaves(obj1.getId()).isEmpty());
+   }
+   
+   @Test
+   public void testFindCanonicalMethod() {
+      Post obj1 = dod.getNewUniquePost();
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.persist();
+      Post obj3 = dod.getNewUniquePost();
+      obj3.persist();
+      
+      // Build a two levels lineage, roots of links of first level sources must have been moved to the last merge.
+      Post merge1 = obj1.merge(obj2);
+      Post merge2 = merge1.merge(obj3);
+      
+      Assert.assertEquals(merge2, Post.findCanonical(obj1.getId()));
+      Assert.assertEquals(merge2, Post.findCanonical(obj2.getId()));
+      Assert.assertEquals(merge2, Post.findCanonical(merge1.getId()));
+      Assert.assertEquals(merge2, Post.findCanonical(merge2.getId()));
+      Assert.assertNull(Post.findCanonical(null));
+   }
+   
+   @Test
+   public void testFindMergeCandidatesMethod() {
+      Post obj1 = dod.getNewUniquePost();
+      obj1.persist();
+      Post obj2 = dod.getNewUniquePost();
+      obj2.setAuthor(" " + obj1.getAuthor().toUpperCase() + " ");
+      obj2.persist();
+      Post obj3 = dod.getNewUniquePost();
+      obj3.setAuthor(obj1.getAuthor());
+      obj3.persist();
+      Post single = dod.getNewUniquePost();
+      single.persist();
+      
+      // Authors only differing by case and spaces should be grouped together.
+      List<List<Post>> groups = getGroupsOf(Post.findMergeCandidates(null, 100), obj1, obj2, obj3, single);
+      Assert.assertEquals(1, groups.size());
+      Assert.assertEquals(Arrays.asList(obj1, obj2, obj3), groups.get(0));
+      Assert.assertEquals(groups, getGroupsOf(Post.findMergeCandidates(null, 100, obj1.getId().intValue() % 2, 2), obj1));
+      
+      // Once merged, sources have a link and are no more candidates, unlike their merge result.
+      Post merge = obj1.merge(obj2);
+      groups = getGroupsOf(Post.findMergeCandidates(null, 100), obj1, obj2, obj3, single);
+      Assert.assertEquals(1, groups.size());
+      Assert.assertEquals(Arrays.asList(obj3, merge), groups.get(0));
+   }
+   
+   /**
+    * Create and persist a new tag.
+    * @param name The name of the tag
+    * @return The persisted tag
+    */
+   private Tag newTag(String name) {
+      Tag tag = new Tag();
+      tag.setName(name);
+      tag.persist();
+      return tag;
+   }
+   
+   /**
+    * Keep the candidate groups holding any of the given posts, ignoring the groups of other tests data.
+    * @param groups The candidate groups to filter
+    * @param posts The posts created by the test
+    * @return The groups holding at least one of the posts
+    */
+   private List<List<Post>> getGroupsOf(List<List<Post>> groups, Post... posts) {
+      List<List<Post>> result = new ArrayList<List<Post>>();
+      for (List<Post> group : groups){
+         if (!Collections.disjoint(group, Arrays.asList(posts))){
+            result.add(group);
+         }
+      }
+      return result;
+   }
+}
@@ -1,7 +1,50 @@
 package com.github.lbroudoux.roo.addon.mergeable.domain;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
 import org.springframework.roo.addon.dod.RooDataOnDemand;
+import org.springframework.transaction.annotation.Transactional;
 
 @RooDataOnDemand(entity = Tweet.class)
 public class TweetDataOnDemand {
+
+   /** Sequence making authors and contents of unique tweets distinct from any other tweet. */
+   private final AtomicInteger uniqueIndex = new AtomicInteger();
+   
+   /**
+    * Create a new transient tweet whose author and content are not shared with any other tweet, so that tests
+    * only see duplicates they've created on purpose.
+    * @return The new tweet, being its own original as other tweets of this data on demand
+    */
+   public Tweet getNewUniqueTweet() {
+      int index = uniqueIndex.incrementAndGet();
+      Tweet obj = getNewTransientTweet(index);
+      obj.setAuthor("unique_author_" + index);
+      obj.setContent("unique_content_" + index);
+      return obj;
+   }
+   
+   /**
+    * Get the greatest identifier of tweets, to be given to {@link #deleteTweetsAfter(Long)} once a test committing 
+    * its tweets is over.
+    * @return The greatest identifier, 0 if there's no tweet
+    */
+   public Long getLastTweetId() {
+      return Tweet.entityManager().createQuery("SELECT COALESCE(MAX(o.id), 0) FROM Tweet o", Long.class).getSingleResult();
+   }
+   
+   /**
+    * Delete the tweets created after the given identifier, so that tests committing their tweets do not leak 
+    * them to other tests. References between tweets are removed first.
+    * @param lastId The greatest identifier of tweets to keep
+    */
+   @Transactional
+   public void deleteTweetsAfter(Long lastId) {
+      EntityManager em = Tweet.entityManager();
+      em.createQuery("UPDATE Tweet o SET o.original = NULL, o.mergeResult = NULL, o.mergeRoot = NULL, o.mergeMainReference = NULL, " 
+            + "o.mergeSecondReference = NULL WHERE o.id > :lastId").setParameter("lastId", lastId).executeUpdate();
+      em.createQuery("DELETE FROM Tweet o WHERE o.id > :lastId").setParameter("lastId", lastId).executeUpdate();
+   }
 }
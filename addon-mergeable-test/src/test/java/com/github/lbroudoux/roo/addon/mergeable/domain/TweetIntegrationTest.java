@@ -1,10 +1,39 @@
 package com.github.lbroudoux.roo.addon.mergeable.domain;
 
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.OptimisticLockException;
+
 import junit.framework.Assert;
 
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.roo.addon.test.RooIntegrationTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.lbroudoux.roo.addon.mergeable.merge.InMemoryMergeMetricsListener;
+import com.github.lbroudoux.roo.addon.mergeable.merge.MergeMetricsListener;
 
 @RooIntegrationTest(entity = Tweet.class)
 public class TweetIntegrationTest {
@@ -12,6 +41,9 @@ public class TweetIntegrationTest {
    @Autowired
    private TweetDataOnDemand dod;
    
+   @Autowired
+   private PlatformTransactionManager transactionManager;
+   
    @Test
    public void testMergeableMethod() {
       Tweet obj1 = dod.getSpecificTweet(1);
@@ -52,4 +84,716 @@ public class TweetIntegrationTest {
       Assert.assertEquals("lbroudoux", merge.getAuthor());
       Assert.assertEquals("Someone else content", merge.getContent());
    }
+   
+   @Test
+   public void testMergeAllMethod() {
+      List<Entry<Tweet, Tweet>> pairs = new ArrayList<Entry<Tweet, Tweet>>();
+      for (int i = 0; i < 3; i++){
+         Tweet main = dod.getNewUniqueTweet();
+         main.setContent(null);
+         main.persist();
+         Tweet second = dod.getNewUniqueTweet();
+         second.persist();
+         pairs.add(new SimpleEntry<Tweet, Tweet>(main, second));
+      }
+      
+      // Merge using chunks smaller than the number of pairs.
+      List<Tweet> merges = Tweet.mergeAll(pairs, 2);
+      Assert.assertEquals(3, merges.size());
+      for (int i = 0; i < 3; i++){
+         Tweet merge = Tweet.findTweet(merges.get(i).getId());
+         Assert.assertEquals(pairs.get(i).getKey().getAuthor(), merge.getAuthor());
+         Assert.assertEquals(pairs.get(i).getValue().getContent(), merge.getContent());
+         Assert.assertTrue(Tweet.findTweet(pairs.get(i).getKey().getId()).wasMerged());
+         Assert.assertTrue(Tweet.findTweet(pairs.get(i).getValue().getId()).wasMerged());
+      }
+   }
+   
+   @Test
+   public void testMergeListMethod() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.setContent(null);
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.setContent(null);
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      
+      // Merge and check a single result has been created.
+      Tweet merge = obj1.merge(Arrays.asList(obj2, obj3));
+      Assert.assertEquals(1, countMergesOf(obj1, obj2, obj3));
+      Assert.assertEquals(obj1, merge.getMergeMainReference());
+      Assert.assertEquals(obj2, merge.getMergeSecondReference());
+      Assert.assertEquals(merge, obj1.getMergeResult());
+      Assert.assertEquals(merge, obj2.getMergeResult());
+      Assert.assertEquals(merge, obj3.getMergeResult());
+      
+      // Check value merging.
+      Assert.assertEquals(obj1.getAuthor(), merge.getAuthor());
+      Assert.assertEquals(obj3.getContent(), merge.getContent());
+      
+      // Check merged sources finders.
+      Assert.assertEquals(3, Tweet.countMergedSources(merge));
+      Assert.assertEquals(3, Tweet.findTweetsByMergeResult(merge).size());
+      Assert.assertEquals(1, Tweet.findTweetsByMergeResult(merge, 2, 10).size());
+   }
+   
+   @Test
+   public void testFindMergeAncestorsMethod() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      
+      // Build a two levels lineage.
+      Tweet merge1 = obj1.merge(obj2);
+      Tweet merge2 = merge1.merge(obj3);
+      
+      List<Tweet> ancestors = Tweet.findMergeAncestors(merge2.getId());
+      Assert.assertEquals(4, ancestors.size());
+      Assert.assertTrue(ancestors.containsAll(Arrays.asList(obj1, obj2, obj3, merge1)));
+      
+      List<Tweet> leaves = Tweet.findMergeLeaves(merge2.getId());
+      Assert.assertEquals(3, leaves.size());
+      Assert.assertTrue(leaves.containsAll(Arrays.asList(obj1, obj2, obj3)));
+      Assert.assertTrue(Tweet.findMergeAncestors(obj1.getId()).isEmpty());
+   }
+   
+   @Test
+   public void testFindCanonicalMethod() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      
+      // Build a two levels lineage, roots of first level sources must have been moved to the last merge.
+      Tweet merge1 = obj1.merge(obj2);
+      Integer version = obj1.getVersion();
+      Tweet merge2 = merge1.merge(obj3);
+      
+      // Moving roots does not change versions of first level sources.
+      Assert.assertEquals(version, Tweet.entityManager().createQuery("SELECT o.version FROM Tweet o WHERE o.id = :id", Integer.class)
+            .setParameter("id", obj1.getId()).getSingleResult());
+      
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(obj1.getId()).getId());
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(obj2.getId()).getId());
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(merge1.getId()).getId());
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(merge2.getId()).getId());
+      Assert.assertNull(Tweet.findCanonical(null));
+   }
+   
+   @Test
+   public void testFindCanonicalMethodWithoutMergeRoots() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      Tweet merge1 = obj1.merge(obj2);
+      Tweet merge2 = merge1.merge(obj3);
+      
+      // Entities merged before merge roots were recorded are resolved by following their merge results.
+      Tweet.entityManager().createQuery("UPDATE Tweet o SET o.mergeRoot = NULL WHERE o.id IN (:ids)")
+            .setParameter("ids", Arrays.asList(obj1.getId(), obj2.getId(), merge1.getId())).executeUpdate();
+      Tweet.entityManager().clear();
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(obj1.getId()).getId());
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(merge1.getId()).getId());
+      Assert.assertEquals(merge2.getId(), Tweet.findCanonical(obj3.getId()).getId());
+   }
+   
+   @Test
+   public void testMergeStreamMethod() {
+      List<List<Tweet>> duplicates = new ArrayList<List<Tweet>>();
+      for (int size : new int[]{ 3, 2 }){
+         List<Tweet> group = new ArrayList<Tweet>();
+         for (int i = 0; i < size; i++){
+            Tweet obj = dod.getNewUniqueTweet();
+            if (i > 0){
+               obj.setAuthor(group.get(0).getAuthor());
+            }
+            obj.persist();
+            group.add(obj);
+         }
+         duplicates.add(group);
+      }
+      Tweet single = dod.getNewUniqueTweet();
+      single.persist();
+      
+      // Stream using chunks smaller than the first group of duplicates.
+      long merges = Tweet.mergeStream("author", new Comparator<Tweet>() {
+         public int compare(Tweet o1, Tweet o2) {
+            return o1.getAuthor().compareTo(o2.getAuthor());
+         }
+      }, 2);
+      Assert.assertEquals(2, merges);
+      
+      // Each seeded duplicate has been merged exactly once, into the single merge result of its group.
+      for (List<Tweet> group : duplicates){
+         Tweet merge = Tweet.findTweet(group.get(0).getId()).getMergeResult();
+         Assert.assertNotNull(merge);
+         Assert.assertFalse(merge.wasMerged());
+         for (Tweet obj : group){
+            Assert.assertEquals(merge.getId(), Tweet.findTweet(obj.getId()).getMergeResult().getId());
+         }
+         Assert.assertEquals(group.size(), Tweet.countMergedSources(merge));
+         Assert.assertEquals(1, countMergesOf(group.toArray(new Tweet[group.size()])));
+      }
+      Assert.assertFalse(Tweet.findTweet(single.getId()).wasMerged());
+      Assert.assertEquals(0, countMergesOf(single));
+   }
+   
+   @Test
+   public void testFindMergeCandidatesMethod() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.setAuthor(" " + obj1.getAuthor().toUpperCase() + " ");
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      obj1.flush();
+      
+      // Authors only differing by case and spaces should be grouped together.
+      List<List<Tweet>> groups = getGroupsOf(Tweet.findMergeCandidates(null, 100), obj1, obj2, obj3);
+      Assert.assertEquals(1, groups.size());
+      Assert.assertEquals(Arrays.asList(obj1, obj2), groups.get(0));
+   }
+   
+   @Test
+   public void testFindMergeCandidatesMethodQueryCount() {
+      List<Tweet> tweets = new ArrayList<Tweet>();
+      for (int i = 0; i < 3; i++){
+         Tweet obj1 = dod.getNewUniqueTweet();
+         obj1.persist();
+         Tweet obj2 = dod.getNewUniqueTweet();
+         obj2.setAuthor(obj1.getAuthor());
+         obj2.persist();
+         tweets.add(obj1);
+         tweets.add(obj2);
+      }
+      Tweet.entityManager().flush();
+      
+      // Keys and members of all the groups of a page are loaded with 2 queries, whatever the number of groups.
+      Statistics statistics = Tweet.entityManager().unwrap(Session.class).getSessionFactory().getStatistics();
+      boolean enabled = statistics.isStatisticsEnabled();
+      statistics.setStatisticsEnabled(true);
+      statistics.clear();
+      List<List<Tweet>> groups;
+      try {
+         groups = getGroupsOf(Tweet.findMergeCandidates(null, 100), tweets.toArray(new Tweet[tweets.size()]));
+         Assert.assertEquals(2, statistics.getQueryExecutionCount());
+      } finally {
+         statistics.setStatisticsEnabled(enabled);
+      }
+      Assert.assertEquals(3, groups.size());
+      for (int i = 0; i < 3; i++){
+         Assert.assertTrue(groups.contains(tweets.subList(2 * i, 2 * i + 2)));
+      }
+   }
+   
+   @Test
+   public void testFindMergeCandidatesMethodPaging() {
+      List<Tweet> tweets = new ArrayList<Tweet>();
+      for (int i = 0; i < 3; i++){
+         Tweet obj1 = dod.getNewUniqueTweet();
+         obj1.persist();
+         Tweet obj2 = dod.getNewUniqueTweet();
+         obj2.setAuthor(obj1.getAuthor().toUpperCase());
+         obj2.persist();
+         tweets.add(obj1);
+         tweets.add(obj2);
+      }
+      Tweet.entityManager().flush();
+      
+      // Walking pages of a single group from the last group read returns every group once.
+      List<List<Tweet>> groups = new ArrayList<List<Tweet>>();
+      List<List<Tweet>> page = Tweet.findMergeCandidates(null, 1);
+      while (!page.isEmpty()){
+         Assert.assertEquals(1, page.size());
+         groups.addAll(getGroupsOf(page, tweets.toArray(new Tweet[tweets.size()])));
+         page = Tweet.findMergeCandidates(page.get(0).get(1), 1);
+      }
+      Assert.assertEquals(3, groups.size());
+      for (int i = 0; i < 3; i++){
+         Assert.assertTrue(groups.contains(tweets.subList(2 * i, 2 * i + 2)));
+      }
+   }
+   
+   @Test
+   public void testFindMergeCandidatesMethodWithPartitions() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.setAuthor(obj1.getAuthor().toUpperCase());
+      obj2.persist();
+      obj1.flush();
+      
+      // A group belongs to the partition of its lowest identifier only.
+      int partition = (int) (obj1.getId() % 2);
+      Assert.assertEquals(1, getGroupsOf(Tweet.findMergeCandidates(null, 100, partition, 2), obj1, obj2).size());
+      Assert.assertTrue(getGroupsOf(Tweet.findMergeCandidates(null, 100, 1 - partition, 2), obj1, obj2).isEmpty());
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void testMergeAllInParallelMethodWithOverlappingGroups() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      
+      // The same entity cannot be part of two concurrent merges.
+      List<List<Tweet>> groups = new ArrayList<List<Tweet>>();
+      groups.add(Arrays.asList(obj1, obj2));
+      groups.add(Arrays.asList(obj2, obj3));
+      Tweet.mergeAllInParallel(groups, 2);
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testMergeAllInParallelMethod() {
+      // Workers merge within their own transactions, tweets have to be committed first.
+      Long lastId = dod.getLastTweetId();
+      final AtomicInteger threads = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+         public Thread newThread(Runnable runnable) {
+            threads.incrementAndGet();
+            return new Thread(runnable);
+         }
+      });
+      try {
+         // Groups are split into 3 chunks of at most 50 groups, each one merged by its own thread.
+         List<List<Tweet>> groups = getNewCommittedGroups(120);
+         List<Tweet> merges = Tweet.mergeAllInParallel(groups, executor);
+         Assert.assertEquals(3, threads.get());
+         Assert.assertEquals(groups.size(), merges.size());
+         for (int i = 0; i < groups.size(); i++){
+            for (Tweet source : groups.get(i)){
+               Assert.assertEquals(merges.get(i).getId(), Tweet.findCanonical(source.getId()).getId());
+            }
+         }
+      } finally {
+         executor.shutdown();
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testMergeAllInParallelMethodWithFailingChunk() {
+      Long lastId = dod.getLastTweetId();
+      try {
+         // Make the second chunk of 50 groups fail on a tweet that does not exist.
+         List<List<Tweet>> groups = getNewCommittedGroups(60);
+         Tweet missing = dod.getNewUniqueTweet();
+         missing.setId(Long.MAX_VALUE);
+         groups.get(55).set(1, missing);
+         try {
+            Tweet.mergeAllInParallel(groups, 1);
+            Assert.fail("Merging a missing tweet should have failed");
+         } catch (IllegalStateException e){
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+            Assert.assertTrue(e.getMessage().startsWith("50 of 60 "));
+         }
+         
+         // Groups of the first chunk have been committed, the whole second chunk has been rolled back.
+         for (int i = 0; i < groups.size(); i++){
+            Assert.assertEquals(i < 50, Tweet.findTweet(groups.get(i).get(0).getId()).wasMerged());
+         }
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   public void testMergeFieldStrategy() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.setContent("Short content");
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.setContent("A much longer content");
+      obj2.persist();
+      
+      // Content uses the LONGEST strategy whereas author keeps the first non null value.
+      Tweet merge = obj1.merge(obj2);
+      Assert.assertEquals(obj1.getAuthor(), merge.getAuthor());
+      Assert.assertEquals("A much longer content", merge.getContent());
+   }
+   
+   @Test
+   public void testMergeReparentsChildren() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet retweet1 = dod.getNewUniqueTweet();
+      retweet1.setOriginal(obj1);
+      retweet1.persist();
+      Tweet retweet2 = dod.getNewUniqueTweet();
+      retweet2.setOriginal(obj2);
+      retweet2.persist();
+      
+      // Retweets of both sources should now be retweets of the merge.
+      Tweet merge = obj1.merge(obj2);
+      merge.flush();
+      merge.clear();
+      Assert.assertEquals(merge.getId(), Tweet.findTweet(retweet1.getId()).getOriginal().getId());
+      Assert.assertEquals(merge.getId(), Tweet.findTweet(retweet2.getId()).getOriginal().getId());
+      Assert.assertEquals(2, Tweet.findTweet(merge.getId()).getRetweets().size());
+   }
+   
+   @Test
+   public void testMergeMetrics() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      
+      InMemoryMergeMetricsListener metrics = new InMemoryMergeMetricsListener();
+      Tweet.setMergeMetricsListener(metrics);
+      try {
+         obj1.merge(Arrays.asList(obj2, obj3));
+      } finally {
+         Tweet.setMergeMetricsListener(null);
+      }
+      
+      // A single merge result persisted and its 3 sources marked, within a single flush.
+      Assert.assertEquals(1, metrics.getCallCount());
+      Assert.assertEquals(1, metrics.getMergeCount());
+      Assert.assertEquals(1, metrics.getFlushCount());
+      Assert.assertEquals(4, metrics.getRowsTouched());
+      Assert.assertTrue(metrics.getPhaseNanos(MergeMetricsListener.MARK) > 0);
+      Assert.assertTrue(metrics.getMergeLatencyPercentile(99) > 0);
+   }
+   
+   @Test
+   public void testMergeAsyncCoalescesRequests() throws Exception {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      
+      // Hold submitted merges so that they're run later within the current thread and transaction.
+      final List<Runnable> submitted = new ArrayList<Runnable>();
+      Tweet.setMergeExecutor(new Executor() {
+         public void execute(Runnable command) {
+            submitted.add(command);
+         }
+      });
+      Future<Tweet> future;
+      try {
+         future = obj1.mergeAsync(obj2);
+         Assert.assertSame(future, obj1.mergeAsync(obj2));
+      } finally {
+         Tweet.setMergeExecutor(null);
+      }
+      
+      // Both requests share a single merge.
+      Assert.assertEquals(1, submitted.size());
+      Assert.assertFalse(future.isDone());
+      submitted.get(0).run();
+      Tweet merge = future.get();
+      Assert.assertTrue(merge.isMergeResult());
+      Assert.assertEquals(2, Tweet.countMergedSources(merge));
+   }
+   
+   @Test
+   public void testMergeAsyncKeepsRequestOrder() throws Exception {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      
+      final List<Runnable> submitted = new ArrayList<Runnable>();
+      Tweet.setMergeExecutor(new Executor() {
+         public void execute(Runnable command) {
+            submitted.add(command);
+         }
+      });
+      Future<Tweet> future;
+      Future<Tweet> reversed;
+      try {
+         // Requesting the merge of the same sources in reversed order asks for another main source.
+         future = obj1.mergeAsync(obj2);
+         reversed = obj2.mergeAsync(obj1);
+         Assert.assertNotSame(future, reversed);
+      } finally {
+         Tweet.setMergeExecutor(null);
+      }
+      
+      // Each merge keeps the order of its request, only the first one to run can merge the sources.
+      Assert.assertEquals(2, submitted.size());
+      submitted.get(0).run();
+      Tweet merge = future.get();
+      Assert.assertEquals(obj1.getId(), merge.getMergeMainReference().getId());
+      Assert.assertEquals(obj2.getId(), merge.getMergeSecondReference().getId());
+      submitted.get(1).run();
+      try {
+         reversed.get();
+         Assert.fail("Merging already merged sources should have failed");
+      } catch (ExecutionException e){
+         Assert.assertTrue(e.getCause() instanceof OptimisticLockException);
+      }
+   }
+   
+   @Test
+   public void testMergeByIdsMethod() {
+      Tweet original = dod.getNewUniqueTweet();
+      original.persist();
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.setContent("Short");
+      obj1.setOriginal(null);
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.setContent("Longer content");
+      obj2.setOriginal(original);
+      obj2.persist();
+      obj2.flush();
+      
+      // Merge within the database, then reload everything for checking.
+      Long mergeId = Tweet.mergeByIds(obj1.getId(), obj2.getId());
+      Tweet.entityManager().clear();
+      Tweet merge = Tweet.findTweet(mergeId);
+      Assert.assertEquals(obj1.getAuthor(), merge.getAuthor());
+      Assert.assertEquals("Longer content", merge.getContent());
+      Assert.assertEquals(original.getId(), merge.getOriginal().getId());
+      Assert.assertEquals(obj1.getId(), merge.getMergeMainReference().getId());
+      Assert.assertEquals(obj2.getId(), merge.getMergeSecondReference().getId());
+      Assert.assertEquals(mergeId, Tweet.findTweet(obj1.getId()).getMergeResult().getId());
+      Assert.assertEquals(mergeId, Tweet.findCanonical(obj2.getId()).getId());
+   }
+   
+   @Test
+   public void testMergeByIdsMethodRefusesMergedSources() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.persist();
+      obj3.flush();
+      
+      // A source already merged is refused before anything is inserted.
+      Long mergeId = Tweet.mergeByIds(obj1.getId(), obj2.getId());
+      try {
+         Tweet.mergeByIds(obj1.getId(), obj3.getId());
+         Assert.fail("Merging an already merged Tweet should have failed");
+      } catch (IllegalArgumentException e){
+         Assert.assertEquals(1, countMergesOf(obj1, obj2, obj3));
+      }
+      Assert.assertEquals(mergeId, Tweet.findCanonical(obj1.getId()).getId());
+      Assert.assertEquals(obj3.getId(), Tweet.findCanonical(obj3.getId()).getId());
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testLiveMergeRefreshesResultOnCommit() {
+      // Changes are merged again once committed, tweets have to be committed first.
+      Long lastId = dod.getLastTweetId();
+      try {
+         List<Tweet> sources = getNewCommittedGroups(1).get(0);
+         Long resultId = sources.get(0).merge(sources.get(1)).getId();
+         updateInTransaction(sources.get(1).getId(), "Longest content of merged tweets", false);
+         
+         // Content of the second tweet is now the longest one, author of the main one is kept.
+         Tweet result = Tweet.findTweet(resultId);
+         Assert.assertEquals("Longest content of merged tweets", result.getContent());
+         Assert.assertEquals(sources.get(0).getAuthor(), result.getAuthor());
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testLiveMergeIgnoresRolledBackChanges() {
+      Long lastId = dod.getLastTweetId();
+      try {
+         List<Tweet> sources = getNewCommittedGroups(1).get(0);
+         Tweet result = sources.get(0).merge(sources.get(1));
+         updateInTransaction(sources.get(1).getId(), "Longest content of merged tweets", true);
+         
+         Assert.assertEquals(result.getContent(), Tweet.findTweet(result.getId()).getContent());
+         Assert.assertEquals(sources.get(1).getContent(), Tweet.findTweet(sources.get(1).getId()).getContent());
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testLiveMergeOutsideTransaction() {
+      Long lastId = dod.getLastTweetId();
+      try {
+         List<Tweet> sources = getNewCommittedGroups(1).get(0);
+         Tweet result = sources.get(0).merge(sources.get(1));
+         
+         // Without any transaction, changes are only tracked by a new snapshot, nothing is refreshed.
+         Tweet second = Tweet.findTweet(sources.get(1).getId());
+         second.setContent("Longest content of merged tweets");
+         second.trackMergeableChanges();
+         Assert.assertEquals(result.getContent(), Tweet.findTweet(result.getId()).getContent());
+         
+         // Saving the detached tweet compares it to its persistent state, within a transaction of its own.
+         second.merge();
+         Assert.assertEquals("Longest content of merged tweets", Tweet.findTweet(result.getId()).getContent());
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testLiveMergeRefreshesChainedResults() {
+      Long lastId = dod.getLastTweetId();
+      try {
+         // The first merge result is itself merged with another tweet.
+         List<List<Tweet>> groups = getNewCommittedGroups(2);
+         Tweet first = groups.get(0).get(0).merge(groups.get(0).get(1));
+         Tweet root = Tweet.findTweet(first.getId()).merge(groups.get(1).get(0));
+         updateInTransaction(groups.get(0).get(1).getId(), "Longest content of merged tweets", false);
+         
+         // Both merge results are refreshed, up to the merge root.
+         Assert.assertEquals("Longest content of merged tweets", Tweet.findTweet(first.getId()).getContent());
+         Assert.assertEquals("Longest content of merged tweets", Tweet.findTweet(root.getId()).getContent());
+         Assert.assertEquals(groups.get(0).get(0).getAuthor(), Tweet.findTweet(root.getId()).getAuthor());
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   @Transactional(propagation = Propagation.NOT_SUPPORTED)
+   public void testLiveMergeRefreshesSourcesInOriginalOrder() {
+      Long lastId = dod.getLastTweetId();
+      try {
+         List<Tweet> tweets = new ArrayList<Tweet>();
+         for (String content : Arrays.asList("Later content", "First content", "Short", "Short")){
+            Tweet obj = dod.getNewUniqueTweet();
+            obj.setContent(content);
+            obj.persist();
+            tweets.add(obj);
+         }
+         
+         // Other sources are given in the reverse order of their identifiers, the first longest content wins.
+         Tweet result = tweets.get(3).merge(Arrays.asList(tweets.get(2), tweets.get(1), tweets.get(0)));
+         Assert.assertEquals("First content", result.getContent());
+         
+         // Merging again in the order of identifiers would make the changed content win.
+         updateInTransaction(tweets.get(0).getId(), "Other content", false);
+         Assert.assertEquals("First content", Tweet.findTweet(result.getId()).getContent());
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   public void testPreviewMergeAndAnalyzeConflicts() {
+      Tweet obj1 = dod.getNewUniqueTweet();
+      obj1.setContent("Short");
+      obj1.persist();
+      Tweet obj2 = dod.getNewUniqueTweet();
+      obj2.setContent(null);
+      obj2.persist();
+      Tweet obj3 = dod.getNewUniqueTweet();
+      obj3.setAuthor(obj1.getAuthor());
+      obj3.setContent("Longer content");
+      obj3.persist();
+      Tweet obj4 = dod.getNewUniqueTweet();
+      obj4.setAuthor(obj1.getAuthor());
+      obj4.setContent("Brief");
+      obj4.persist();
+      
+      // Preview is computed in memory only.
+      Tweet preview = obj1.previewMerge(obj3);
+      Assert.assertNull(preview.getId());
+      Assert.assertEquals(obj1.getAuthor(), preview.getAuthor());
+      Assert.assertEquals("Longer content", preview.getContent());
+      Assert.assertFalse(obj1.wasMerged());
+      Assert.assertEquals(0, countMergesOf(obj1, obj2, obj3));
+      
+      // Author conflicts in first pair only. Content uses LONGEST strategy: it is settled in second pair and only 
+      // conflicts in third pair, both contents having the same length. Each tweet is its own original.
+      List<Entry<Tweet, Tweet>> pairs = new ArrayList<Entry<Tweet, Tweet>>();
+      pairs.add(new SimpleEntry<Tweet, Tweet>(obj1, obj2));
+      pairs.add(new SimpleEntry<Tweet, Tweet>(obj1, obj3));
+      pairs.add(new SimpleEntry<Tweet, Tweet>(obj1, obj4));
+      Map<String, Integer> conflicts = Tweet.analyzeConflicts(pairs);
+      Assert.assertEquals(Integer.valueOf(1), conflicts.get("author"));
+      Assert.assertEquals(Integer.valueOf(1), conflicts.get("content"));
+      Assert.assertEquals(Integer.valueOf(3), conflicts.get("original"));
+      Assert.assertEquals(0, countMergesOf(obj1, obj2, obj3, obj4));
+   }
+   
+   /**
+    * Update the content of a committed tweet within a transaction of its own, changes being flushed at commit.
+    * @param id The identifier of the tweet to update
+    * @param content The new content
+    * @param rollback Whether the transaction should be rolled back instead
+    */
+   private void updateInTransaction(final Long id, final String content, final boolean rollback) {
+      new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+         protected void doInTransactionWithoutResult(TransactionStatus status) {
+            Tweet.findTweet(id).setContent(content);
+            if (rollback){
+               Tweet.entityManager().flush();
+               status.setRollbackOnly();
+            }
+         }
+      });
+   }
+   
+   /**
+    * Create groups of 2 unique tweets, each tweet being persisted within its own committed transaction.
+    * @param count The number of groups to create
+    * @return The groups of committed tweets
+    */
+   private List<List<Tweet>> getNewCommittedGroups(int count) {
+      List<List<Tweet>> groups = new ArrayList<List<Tweet>>(count);
+      for (int i = 0; i < count; i++){
+         List<Tweet> group = new ArrayList<Tweet>(2);
+         for (int j = 0; j < 2; j++){
+            Tweet obj = dod.getNewUniqueTweet();
+            obj.persist();
+            group.add(obj);
+         }
+         groups.add(group);
+      }
+      return groups;
+   }
+   
+   /**
+    * Keep the candidate groups holding any of the given tweets, ignoring the groups of other tests data.
+    * @param groups The candidate groups to filter
+    * @param tweets The tweets created by the test
+    * @return The groups holding at least one of the tweets
+    */
+   private List<List<Tweet>> getGroupsOf(List<List<Tweet>> groups, Tweet... tweets) {
+      List<List<Tweet>> result = new ArrayList<List<Tweet>>();
+      for (List<Tweet> group : groups){
+         if (!Collections.disjoint(group, Arrays.asList(tweets))){
+            result.add(group);
+         }
+      }
+      return result;
+   }
+   
+   /**
+    * Count the merge results having any of the given tweets as main or second reference.
+    * @param tweets The tweets created by the test
+    * @return The number of merge results built from these tweets
+    */
+   private long countMergesOf(Tweet... tweets) {
+      return Tweet.entityManager().createQuery("SELECT COUNT(o) FROM Tweet o WHERE o.mergeMainReference IN (:tweets) " 
+            + "OR o.mergeSecondReference IN (:tweets)", Long.class).setParameter("tweets", Arrays.asList(tweets)).getSingleResult();
+   }
 }
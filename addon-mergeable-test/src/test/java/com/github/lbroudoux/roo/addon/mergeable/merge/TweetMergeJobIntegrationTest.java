@@ -0,0 +1,149 @@
+package com.github.lbroudoux.roo.addon.mergeable.merge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.launch.JobLauncher;
+import org.springframework.batch.test.JobLauncherTestUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.github.lbroudoux.roo.addon.mergeable.domain.Tweet;
+import com.github.lbroudoux.roo.addon.mergeable.domain.TweetDataOnDemand;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/META-INF/spring/applicationContext*.xml")
+public class TweetMergeJobIntegrationTest {
+   
+   /** Number of duplicate groups created by tests, spread over the 2 partitions and several chunks of the job. */
+   private static final int GROUPS = 30;
+   
+   @Autowired
+   private TweetDataOnDemand dod;
+   
+   @Autowired
+   private Job tweetMergeJob;
+   
+   @Autowired
+   private JobLauncher jobLauncher;
+   
+   private JobLauncherTestUtils jobLauncherTestUtils;
+   
+   @Before
+   public void setUp() {
+      jobLauncherTestUtils = new JobLauncherTestUtils();
+      jobLauncherTestUtils.setJob(tweetMergeJob);
+      jobLauncherTestUtils.setJobLauncher(jobLauncher);
+   }
+   
+   @Test
+   public void testMergeJob() throws Exception {
+      Long lastId = dod.getLastTweetId();
+      try {
+         List<Tweet[]> groups = createGroups();
+         
+         JobExecution execution = jobLauncherTestUtils.launchJob(jobLauncherTestUtils.getUniqueJobParameters());
+         Assert.assertEquals(BatchStatus.COMPLETED, execution.getStatus());
+         
+         // Every group merged exactly once, and nothing left to merge.
+         Assert.assertEquals(GROUPS, countMergedGroups(groups));
+         Assert.assertTrue(Tweet.findMergeCandidates(null, 1).isEmpty());
+      } finally {
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   @Test
+   public void testMergeJobRestartAfterFailure() throws Exception {
+      Long lastId = dod.getLastTweetId();
+      try {
+         List<Tweet[]> groups = createGroups();
+         
+         // Fail a chunk once the results of its groups are persisted and some of their sources marked.
+         final AtomicInteger marks = new AtomicInteger();
+         Tweet.setMergeMetricsListener(new InMemoryMergeMetricsListener() {
+            @Override
+            public void phaseCompleted(Class<?> entityType, String phase, long nanos, int rows) {
+               if (MergeMetricsListener.MARK.equals(phase) && marks.incrementAndGet() == GROUPS / 2) {
+                  throw new IllegalStateException("Failure within a chunk");
+               }
+            }
+         });
+         JobParameters parameters = jobLauncherTestUtils.getUniqueJobParameters();
+         JobExecution execution;
+         try {
+            execution = jobLauncherTestUtils.launchJob(parameters);
+         } finally {
+            Tweet.setMergeMetricsListener(null);
+         }
+         Assert.assertEquals(BatchStatus.FAILED, execution.getStatus());
+         
+         // The failed chunk is rolled back while the chunks committed before are kept.
+         long merged = countMergedGroups(groups);
+         Assert.assertTrue(merged > 0);
+         Assert.assertTrue(merged < GROUPS);
+         
+         // Restarting goes on with the groups left unmerged.
+         execution = jobLauncherTestUtils.launchJob(parameters);
+         Assert.assertEquals(BatchStatus.COMPLETED, execution.getStatus());
+         Assert.assertEquals(GROUPS, countMergedGroups(groups));
+         Assert.assertTrue(Tweet.findMergeCandidates(null, 1).isEmpty());
+      } finally {
+         Tweet.setMergeMetricsListener(null);
+         dod.deleteTweetsAfter(lastId);
+      }
+   }
+   
+   /**
+    * Create and commit groups of 2 duplicate tweets, sharing their author. First tweets of groups are created 
+    * before any duplicate so that their consecutive identifiers spread groups over partitions.
+    * @return The groups created
+    */
+   private List<Tweet[]> createGroups() {
+      List<Tweet[]> groups = new ArrayList<Tweet[]>(GROUPS);
+      for (int i = 0; i < GROUPS; i++) {
+         Tweet obj1 = dod.getNewUniqueTweet();
+         obj1.persist();
+         groups.add(new Tweet[] { obj1, null });
+      }
+      for (Tweet[] group : groups) {
+         Tweet obj2 = dod.getNewUniqueTweet();
+         obj2.setAuthor(group[0].getAuthor());
+         obj2.persist();
+         group[1] = obj2;
+      }
+      return groups;
+   }
+   
+   /**
+    * Count the groups merged exactly once, failing if any group was merged more than once.
+    * @param groups The groups created by the test
+    * @return The number of groups whose tweets were all merged into a single merge result
+    */
+   private long countMergedGroups(List<Tweet[]> groups) {
+      long merged = 0;
+      for (Tweet[] group : groups) {
+         long merges = Tweet.entityManager().createQuery("SELECT COUNT(o) FROM Tweet o WHERE o.mergeMainReference IN (:tweets) "
+               + "OR o.mergeSecondReference IN (:tweets)", Long.class).setParameter("tweets", Arrays.asList(group)).getSingleResult();
+         Assert.assertTrue("Group of " + group[0].getAuthor() + " merged " + merges + " times", merges <= 1);
+         if (merges == 1) {
+            Assert.assertTrue(Tweet.findTweet(group[0].getId()).wasMerged());
+            Assert.assertTrue(Tweet.findTweet(group[1].getId()).wasMerged());
+            merged++;
+         }
+      }
+      return merged;
+   }
+}
@@ -0,0 +1,27 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the code generation benchmarks. Runs JMH with the usual command line options, adding the GC
+ * profiler so that allocation rates are always reported, and writing results as JSON for comparing runs.
+ * 
+ * @since 1.1.0
+ */
+public class MergeableBenchmarkRunner {
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result("target/jmh-result.json")
+            .build();
+      new Runner(options).run();
+   }
+}
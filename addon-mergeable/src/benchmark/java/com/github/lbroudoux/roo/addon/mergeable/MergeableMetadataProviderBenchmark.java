@@ -0,0 +1,146 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.roo.classpath.details.annotations.AnnotatedJavaType;
+import org.springframework.roo.model.JavaSymbolName;
+import org.springframework.roo.model.JavaType;
+
+import com.github.lbroudoux.roo.addon.mergeable.SyntheticProject.Entity;
+
+/**
+ * Benchmarks of the code generation of the add-on over a {@link SyntheticProject}. Each operation handles every
+ * entity of the project, as Roo does when starting the shell on an existing project :
+ * <ul>
+ * <li><b>getMetadata</b> is the whole job of the provider on a cold cache : field analysis, state hash and
+ * ITD building,</li>
+ * <li><b>getMetadataCached</b> is the job of the provider when the governor has not changed : state hash of
+ * the governor and reuse of the generated members only,</li>
+ * <li><b>buildItd</b> is the construction of the metadata from already analysed fields : ITD building,
+ * including the lookup of each generated method among the declared ones,</li>
+ * <li><b>methodExists</b> is the lookup alone, for each name of a generated method, of a signature the governor
+ * does not declare and of its last declared overload, among declared methods sharing that name.</li>
+ * </ul>
+ * Field analysis cost is the difference between getMetadata and buildItd. Allocation rates are reported by
+ * the GC profiler added by {@link MergeableBenchmarkRunner}.
+ * 
+ * @since 1.1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeableMetadataProviderBenchmark {
+
+   /** The synthetic project, built once per combination of parameters. */
+   @State(Scope.Benchmark)
+   public static class Project {
+      @Param({ "10", "500", "5000" })
+      private int entities;
+      @Param({ "5", "50", "200" })
+      private int fields;
+      @Param({ "20" })
+      private int extraMethods;
+      private SyntheticProject project;
+      
+      @Setup(Level.Trial)
+      public void build() {
+         project = new SyntheticProject(entities, fields, extraMethods);
+      }
+   }
+   
+   /** A provider with an empty metadata cache. */
+   @State(Scope.Thread)
+   public static class ColdProvider {
+      private MergeableMetadataProvider provider;
+      
+      @Setup(Level.Invocation)
+      public void create(Project project) {
+         provider = project.project.newProvider();
+      }
+   }
+   
+   /** A provider whose metadata cache holds every entity of the project. */
+   @State(Scope.Thread)
+   public static class WarmProvider {
+      private MergeableMetadataProvider provider;
+      
+      @Setup(Level.Trial)
+      public void create(Project project) {
+         provider = project.project.newProvider();
+         for (Entity entity : project.project.getEntities()){
+            project.project.getMetadata(provider, entity);
+         }
+      }
+   }
+   
+   /** The metadata of a single entity declaring the given number of methods named after the generated ones. */
+   @State(Scope.Benchmark)
+   public static class Collisions {
+      @Param({ "0", "70", "700" })
+      private int collisions;
+      private MergeableMetadata metadata;
+      private final List<JavaSymbolName> names = new ArrayList<JavaSymbolName>();
+      private final List<List<AnnotatedJavaType>> missing = new ArrayList<List<AnnotatedJavaType>>();
+      private final List<List<AnnotatedJavaType>> declared = new ArrayList<List<AnnotatedJavaType>>();
+      
+      @Setup(Level.Trial)
+      public void build() {
+         final SyntheticProject project = new SyntheticProject(1, 50, collisions);
+         metadata = project.buildMetadata(project.getEntities().get(0));
+         // Declared overloads only take Strings, the last one of each name has the most parameters.
+         final int overloads = Math.max(collisions / SyntheticProject.GENERATED_METHOD_NAMES.length, 1);
+         for (String name : SyntheticProject.GENERATED_METHOD_NAMES){
+            names.add(new JavaSymbolName(name));
+            missing.add(AnnotatedJavaType.convertFromJavaTypes(Collections.singletonList(JavaType.LONG_OBJECT)));
+            declared.add(AnnotatedJavaType.convertFromJavaTypes(Collections.nCopies(overloads, JavaType.STRING)));
+         }
+      }
+   }
+   
+   @Benchmark
+   public void getMetadata(Project project, ColdProvider cold, Blackhole blackhole) {
+      for (Entity entity : project.project.getEntities()){
+         blackhole.consume(project.project.getMetadata(cold.provider, entity));
+      }
+   }
+   
+   @Benchmark
+   public void getMetadataCached(Project project, WarmProvider warm, Blackhole blackhole) {
+      for (Entity entity : project.project.getEntities()){
+         blackhole.consume(project.project.getMetadata(warm.provider, entity));
+      }
+   }
+   
+   @Benchmark
+   public void buildItd(Project project, Blackhole blackhole) {
+      for (Entity entity : project.project.getEntities()){
+         blackhole.consume(project.project.buildMetadata(entity));
+      }
+   }
+   
+   @Benchmark
+   public void methodExists(Collisions collisions, Blackhole blackhole) {
+      for (int i = 0; i < collisions.names.size(); i++){
+         blackhole.consume(collisions.metadata.methodExists(collisions.names.get(i), collisions.missing.get(i)));
+         blackhole.consume(collisions.metadata.methodExists(collisions.names.get(i), collisions.declared.get(i)));
+      }
+   }
+}
@@ -0,0 +1,30 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+/**
+ * Strategies available for merging the values of a field, see {@link RooMergeableField}.
+ * 
+ * @since 1.1.0
+ */
+public enum MergeStrategy {
+
+   /** The value of the first source having a non null value is kept (default). */
+   FIRST_NON_NULL,
+   
+   /** The value of the source having the highest version is kept, falling back to the first non null value. */
+   LATEST,
+   
+   /** The longest value is kept, for String fields only. */
+   LONGEST,
+   
+   /** The greatest value is kept, for primitive or Comparable fields. */
+   MAX,
+   
+   /** The smallest value is kept, for primitive or Comparable fields. */
+   MIN,
+   
+   /** The sum of values is kept, for numeric fields only. */
+   SUM,
+   
+   /** Values are merged two by two by the MergeFunction specified on {@link RooMergeableField}. */
+   CUSTOM
+}
@@ -0,0 +1,60 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import org.springframework.roo.classpath.PhysicalTypeMetadata;
+import org.springframework.roo.classpath.details.annotations.populator.AbstractAnnotationValues;
+import org.springframework.roo.classpath.details.annotations.populator.AutoPopulate;
+import org.springframework.roo.classpath.details.annotations.populator.AutoPopulationUtils;
+import org.springframework.roo.model.JavaType;
+
+/**
+ * Represents the values of the {@link RooMergeable} annotation found on a governor type.
+ * 
+ * @since 1.1.0
+ */
+public class MergeableAnnotationValues extends AbstractAnnotationValues {
+
+   @AutoPopulate private int chunkSize = 50;
+   @AutoPopulate private String fetch = "LAZY";
+   @AutoPopulate private String[] matchOn = {};
+   @AutoPopulate private JavaType metricsListener = null;
+   @AutoPopulate private String storage = "COLUMNS";
+   @AutoPopulate private JavaType linkEntity = null;
+   @AutoPopulate private boolean live = false;
+   
+   /**
+    * Build values from the {@link RooMergeable} annotation of the governor.
+    * @param governorPhysicalTypeMetadata Metadata of the annotated type
+    */
+   public MergeableAnnotationValues(PhysicalTypeMetadata governorPhysicalTypeMetadata) {
+      super(governorPhysicalTypeMetadata, new JavaType(RooMergeable.class.getName()));
+      AutoPopulationUtils.populate(this, annotationMetadata);
+   }
+
+   public int getChunkSize() {
+      return chunkSize;
+   }
+
+   public String getFetch() {
+      return fetch;
+   }
+
+   public String[] getMatchOn() {
+      return matchOn;
+   }
+
+   public JavaType getMetricsListener() {
+      return metricsListener;
+   }
+
+   public String getStorage() {
+      return storage;
+   }
+
+   public JavaType getLinkEntity() {
+      return linkEntity;
+   }
+
+   public boolean isLive() {
+      return live;
+   }
+}
@@ -3,6 +3,7 @@ package com.github.lbroudoux.roo.addon.mergeable;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.springframework.roo.model.JavaPackage;
 import org.springframework.roo.model.JavaType;
 import org.springframework.roo.shell.CliAvailabilityIndicator;
 import org.springframework.roo.shell.CliCommand;
@@ -37,7 +38,7 @@ public class MergeableCommands implements CommandMarker { // All command types m
      * 
      * @return true (default) if the command should be visible at this stage, false otherwise
      */
-    @CliAvailabilityIndicator({ "mergeable setup", "mergeable add", "mergeable all" })
+    @CliAvailabilityIndicator({ "mergeable setup", "mergeable add", "mergeable all", "mergeable metrics", "mergeable function", "mergeable link", "mergeable job" })
     public boolean isCommandAvailable() {
         return operations.isCommandAvailable();
     }
@@ -53,12 +54,15 @@ public class MergeableCommands implements CommandMarker { // All command types m
     }
     
     /**
-     * This method registers a command with the Roo shell. It has no command attribute.
+     * This method registers a command with the Roo shell. It offers optional attributes for restricting types to annotate.
      * 
+     * @param javaPackage
+     * @param pattern
      */
     @CliCommand(value = "mergeable all", help = "Some helpful description")
-    public void all() {
-        operations.annotateAll();
+    public void all(@CliOption(key = "package", mandatory = false, optionContext = "update", help = "The package (including sub-packages) of types to annotate") JavaPackage javaPackage, 
+            @CliOption(key = "pattern", mandatory = false, help = "The regular expression simple names of types to annotate must match") String pattern) {
+        operations.annotateAll(javaPackage, pattern);
     }
     
     /**
@@ -69,4 +73,54 @@ public class MergeableCommands implements CommandMarker { // All command types m
     public void setup() {
         operations.setup();
     }
+    
+    /**
+     * This method registers a command with the Roo shell. It offers an optional attribute for the package of generated types.
+     * 
+     * @param javaPackage
+     */
+    @CliCommand(value = "mergeable metrics", help = "Generate a merge metrics listener and report merges of mergeable types to it")
+    public void metrics(@CliOption(key = "package", mandatory = false, optionContext = "update", help = "The package of the generated listener types (defaults to ~.merge)") JavaPackage javaPackage) {
+        operations.setupMetrics(javaPackage);
+    }
+    
+    /**
+     * This method registers a command with the Roo shell. It offers an optional attribute for the package of the generated interface.
+     * 
+     * @param javaPackage
+     */
+    @CliCommand(value = "mergeable function", help = "Generate the interface of functions merging fields using the CUSTOM strategy")
+    public void function(@CliOption(key = "package", mandatory = false, optionContext = "update", help = "The package of the generated interface (defaults to ~.merge)") JavaPackage javaPackage) {
+        operations.setupFunction(javaPackage);
+    }
+    
+    /**
+     * This method registers a command with the Roo shell. It offers optional attributes for the package of the link entity
+     * and for restricting the mergeable type to update.
+     * 
+     * @param javaPackage
+     * @param type
+     */
+    @CliCommand(value = "mergeable link", help = "Generate a merge link entity and store lineage of mergeable types into its table")
+    public void link(@CliOption(key = "package", mandatory = false, optionContext = "update", help = "The package of the link entity (defaults to ~.merge)") JavaPackage javaPackage, 
+            @CliOption(key = "type", mandatory = false, help = "The mergeable type to update (defaults to all mergeable types)") JavaType type) {
+        operations.setupLinkStorage(javaPackage, type);
+    }
+    
+    /**
+     * This method registers a command with the Roo shell. It offers optional attributes for the package of generated types, 
+     * for restricting the mergeable type to generate a job for and for sizing chunks and partitions of the job.
+     * 
+     * @param javaPackage
+     * @param type
+     * @param chunkSize
+     * @param partitions
+     */
+    @CliCommand(value = "mergeable job", help = "Generate a restartable Spring Batch job merging candidate groups of mergeable types")
+    public void job(@CliOption(key = "package", mandatory = false, optionContext = "update", help = "The package of the generated job types (defaults to ~.merge)") JavaPackage javaPackage, 
+            @CliOption(key = "type", mandatory = false, help = "The mergeable type to generate a job for (defaults to all mergeable types matching on some fields)") JavaType type, 
+            @CliOption(key = "chunkSize", mandatory = false, unspecifiedDefaultValue = "100", help = "The number of groups merged within a transaction") int chunkSize, 
+            @CliOption(key = "partitions", mandatory = false, unspecifiedDefaultValue = "1", help = "The number of partitions of groups merged concurrently") int partitions) {
+        operations.setupJob(javaPackage, type, chunkSize, partitions);
+    }
 }
\ No newline at end of file
@@ -1,13 +1,24 @@
 package com.github.lbroudoux.roo.addon.mergeable;
 
+import static org.springframework.roo.model.JdkJavaType.ARRAY_LIST;
+import static org.springframework.roo.model.JdkJavaType.HASH_MAP;
+import static org.springframework.roo.model.JdkJavaType.HASH_SET;
+import static org.springframework.roo.model.JdkJavaType.LIST;
+import static org.springframework.roo.model.JdkJavaType.MAP;
+import static org.springframework.roo.model.JdkJavaType.SET;
+import static org.springframework.roo.model.JpaJavaType.ENTITY_MANAGER;
 import static org.springframework.roo.model.JpaJavaType.ONE_TO_ONE;
 import static org.springframework.roo.model.JpaJavaType.MANY_TO_ONE;
+import static org.springframework.roo.model.SpringJavaType.TRANSACTIONAL;
 
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.springframework.roo.classpath.PhysicalTypeIdentifierNamingUtils;
@@ -21,6 +32,7 @@ import org.springframework.roo.classpath.details.annotations.AnnotationMetadataB
 import org.springframework.roo.classpath.itd.AbstractItdTypeDetailsProvidingMetadataItem;
 import org.springframework.roo.classpath.itd.InvocableMemberBodyBuilder;
 import org.springframework.roo.metadata.MetadataIdentificationUtils;
+import org.springframework.roo.model.DataType;
 import org.springframework.roo.model.JavaSymbolName;
 import org.springframework.roo.model.JavaType;
 import org.springframework.roo.project.LogicalPath;
@@ -36,9 +48,59 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
    // Constants
    private static final String PROVIDES_TYPE_STRING = MergeableMetadata.class.getName();
    private static final String PROVIDES_TYPE = MetadataIdentificationUtils.create(PROVIDES_TYPE_STRING);
+   private static final JavaType ARRAYS = new JavaType("java.util.Arrays");
+   private static final JavaType ATOMIC_BOOLEAN = new JavaType("java.util.concurrent.atomic.AtomicBoolean");
+   private static final JavaType BIG_DECIMAL = new JavaType("java.math.BigDecimal");
+   private static final JavaType BIG_INTEGER = new JavaType("java.math.BigInteger");
+   private static final JavaType COLLECTIONS = new JavaType("java.util.Collections");
+   private static final JavaType CALLABLE = new JavaType("java.util.concurrent.Callable");
+   private static final JavaType COMPARATOR = new JavaType("java.util.Comparator");
+   private static final JavaType CONCURRENT_HASH_MAP = new JavaType("java.util.concurrent.ConcurrentHashMap");
+   private static final JavaType CONCURRENT_MAP = new JavaType("java.util.concurrent.ConcurrentMap");
+   private static final JavaType DATE = new JavaType("java.util.Date");
+   private static final JavaType EXECUTION_EXCEPTION = new JavaType("java.util.concurrent.ExecutionException");
+   private static final JavaType EXECUTOR = new JavaType("java.util.concurrent.Executor");
+   private static final JavaType EXECUTOR_SERVICE = new JavaType("java.util.concurrent.ExecutorService");
+   private static final JavaType EXECUTORS = new JavaType("java.util.concurrent.Executors");
+   private static final JavaType FETCH_TYPE = new JavaType("javax.persistence.FetchType");
+   private static final JavaType FUTURE = new JavaType("java.util.concurrent.Future");
+   private static final JavaType FUTURE_TASK = new JavaType("java.util.concurrent.FutureTask");
+   private static final JavaType HIBERNATE_INDEX = new JavaType("org.hibernate.annotations.Index");
+   private static final JavaType ITERABLE = new JavaType("java.lang.Iterable");
+   private static final JavaType LINKED_HASH_MAP = new JavaType("java.util.LinkedHashMap");
+   private static final JavaType MAP_ENTRY = new JavaType("java.util.Map.Entry");
+   private static final JavaType OPTIMISTIC_LOCK_EXCEPTION = new JavaType("javax.persistence.OptimisticLockException");
+   private static final JavaType PERSISTENCE_UNIT_UTIL = new JavaType("javax.persistence.PersistenceUnitUtil");
+   private static final JavaType POST_LOAD = new JavaType("javax.persistence.PostLoad");
+   private static final JavaType POST_PERSIST = new JavaType("javax.persistence.PostPersist");
+   private static final JavaType PRE_UPDATE = new JavaType("javax.persistence.PreUpdate");
+   private static final JavaType PROPAGATION = new JavaType("org.springframework.transaction.annotation.Propagation");
+   private static final JavaType QUERY = new JavaType("javax.persistence.Query");
+   private static final JavaType TRANSACTION_ASPECT_SUPPORT = new JavaType("org.springframework.transaction.interceptor.TransactionAspectSupport");
+   private static final JavaType TRANSACTION_SYNCHRONIZATION_ADAPTER = new JavaType("org.springframework.transaction.support.TransactionSynchronizationAdapter");
+   private static final JavaType TRANSACTION_SYNCHRONIZATION_MANAGER = new JavaType("org.springframework.transaction.support.TransactionSynchronizationManager");
+   private static final JavaType TYPED_QUERY = new JavaType("javax.persistence.TypedQuery");
 
    private String entityName;
+   private FieldMetadata identifierField;
+   private FieldMetadata versionField;
+   private JavaSymbolName versionMutator;
    private List<FieldMetadata> mergeableFields;
+   private List<FieldMetadata> matchFields;
+   private Map<JavaSymbolName, JavaSymbolName> fieldAccessors;
+   private Map<JavaSymbolName, MergeStrategy> fieldStrategies;
+   private Map<JavaSymbolName, JavaType> fieldFunctions;
+   private List<FieldMetadata> collectionFields;
+   private Map<JavaSymbolName, String> collectionMappedBy;
+   private Map<JavaSymbolName, JavaSymbolName> elementIdAccessors;
+   private MergeableAnnotationValues annotationValues;
+   private String plural;
+   private boolean hibernateProvider;
+   private boolean indexHints;
+   private JavaType metricsListener;
+   private JavaType linkEntity;
+   private boolean live;
+   private Map<JavaSymbolName, List<MethodMetadata>> declaredMethods = new HashMap<JavaSymbolName, List<MethodMetadata>>();
    
    
    public static final String getMetadataIdentiferType() {
@@ -61,18 +123,100 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       return PhysicalTypeIdentifierNamingUtils.isValid(PROVIDES_TYPE_STRING, metadataIdentificationString);
    }
 
-   public MergeableMetadata(String identifier, JavaType aspectName, PhysicalTypeMetadata governorPhysicalTypeMetadata, List<FieldMetadata> mergeableFields) {
+   public MergeableMetadata(String identifier, JavaType aspectName, PhysicalTypeMetadata governorPhysicalTypeMetadata, 
+         FieldMetadata identifierField, FieldMetadata versionField, JavaSymbolName versionMutator, List<FieldMetadata> mergeableFields, Map<JavaSymbolName, JavaSymbolName> fieldAccessors, 
+         Map<JavaSymbolName, MergeStrategy> fieldStrategies, Map<JavaSymbolName, JavaType> fieldFunctions, 
+         List<FieldMetadata> collectionFields, Map<JavaSymbolName, String> collectionMappedBy, 
+         Map<JavaSymbolName, JavaSymbolName> elementIdAccessors, MergeableAnnotationValues annotationValues, 
+         String plural, boolean hibernateProvider) {
       super(identifier, aspectName, governorPhysicalTypeMetadata);
       Validate.isTrue(isValid(identifier), "Metadata identification string '" + identifier + "' does not appear to be a valid");
+      Validate.isTrue("LAZY".equals(annotationValues.getFetch()) || "EAGER".equals(annotationValues.getFetch()), 
+            "Fetch type '" + annotationValues.getFetch() + "' of @RooMergeable should be either LAZY or EAGER");
+      Validate.isTrue("COLUMNS".equals(annotationValues.getStorage()) || "LINK_TABLE".equals(annotationValues.getStorage()), 
+            "Storage '" + annotationValues.getStorage() + "' of @RooMergeable should be either COLUMNS or LINK_TABLE");
+      
+      // Index the governor declared methods by name once, for checking existence of each generated method.
+      for (MethodMetadata method : governorTypeDetails.getDeclaredMethods()){
+         List<MethodMetadata> methods = declaredMethods.get(method.getMethodName());
+         if (methods == null){
+            methods = new ArrayList<MethodMetadata>();
+            declaredMethods.put(method.getMethodName(), methods);
+         }
+         methods.add(method);
+      }
 
       // Initialize entity name.
       entityName = getJavaType(identifier).getSimpleTypeName();
+      this.identifierField = identifierField;
+      this.versionField = versionField;
+      this.versionMutator = versionMutator;
       this.mergeableFields = mergeableFields;
+      this.fieldAccessors = fieldAccessors;
+      this.fieldStrategies = fieldStrategies;
+      this.fieldFunctions = fieldFunctions;
+      this.collectionFields = collectionFields;
+      this.collectionMappedBy = collectionMappedBy;
+      this.elementIdAccessors = elementIdAccessors;
+      this.annotationValues = annotationValues;
+      this.plural = plural;
+      this.hibernateProvider = hibernateProvider;
+      // Index hints use the Hibernate @Index annotation.
+      this.indexHints = hibernateProvider;
+      this.matchFields = getMatchFields();
+      if (annotationValues.getMetricsListener() != null 
+            && !"java.lang.Void".equals(annotationValues.getMetricsListener().getFullyQualifiedTypeName())){
+         this.metricsListener = annotationValues.getMetricsListener();
+      }
+      if ("LINK_TABLE".equals(annotationValues.getStorage())){
+         // Links reference entities by a Long identifier, there is no foreign key to other tables.
+         Validate.isTrue(annotationValues.getLinkEntity() != null 
+               && !"java.lang.Void".equals(annotationValues.getLinkEntity().getFullyQualifiedTypeName()),
+               "LINK_TABLE storage of @RooMergeable on " + entityName + " requires a linkEntity");
+         Validate.isTrue(identifierField != null && JavaType.LONG_OBJECT.equals(getObjectType(identifierField.getFieldType())), 
+               "LINK_TABLE storage of @RooMergeable requires " + entityName + " to have a single Long identifier");
+         this.linkEntity = annotationValues.getLinkEntity();
+      }
+      if (annotationValues.isLive()){
+         // Sources are tracked through lifecycle callbacks, a class may only declare one method per callback.
+         Validate.isTrue(linkEntity == null && identifierField != null, 
+               "Live merges of @RooMergeable on " + entityName + " require COLUMNS storage and a single identifier");
+         for (final List<MethodMetadata> methods : declaredMethods.values()){
+            for (final MethodMetadata method : methods){
+               for (final JavaType callback : Arrays.asList(POST_LOAD, POST_PERSIST, PRE_UPDATE)){
+                  Validate.isTrue(method.getAnnotation(callback) == null, "Live merges of @RooMergeable on " + entityName 
+                        + " use @" + callback.getSimpleTypeName() + ", which is already declared by " + method.getMethodName() + "()");
+               }
+            }
+         }
+         this.live = true;
+      }
       
-      // Add merge related fields and methods.
-      builder.addField(getMainReferenceField());
-      builder.addField(getSecondReferenceField());
-      builder.addField(getMergeResultField());
+      // Add merge related fields and methods. Lineage is held by the entity itself, unless stored into a link table.
+      if (linkEntity == null){
+         builder.addField(getMainReferenceField());
+         builder.addField(getSecondReferenceField());
+         builder.addField(getMergeResultField());
+         if (identifierField != null){
+            builder.addField(getMergeRootField());
+         }
+         if (live){
+            builder.addField(getMergeIndexField());
+         }
+      }
+      for (final FieldMetadata field : getFieldsWithStrategy(MergeStrategy.CUSTOM)){
+         builder.addField(getMergeFunctionField(field));
+      }
+      if (metricsListener != null){
+         builder.addField(getMetricsListenerField());
+      }
+      if (live){
+         builder.addField(getMergeSnapshotField());
+      }
+      if (identifierField != null){
+         builder.addField(getMergeExecutorField());
+         builder.addField(getPendingMergesField());
+      }
 
       // Adding a new sample method definition
       builder.addMethod(getMainReferenceAccessor());
@@ -80,11 +224,88 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       builder.addMethod(getMergeResultAccessor());
       builder.addMethod(getWasMergedMethod());
       builder.addMethod(getIsMergeResultMethod());
+      if (metricsListener != null){
+         builder.addMethod(getMetricsListenerAccessor());
+         builder.addMethod(getMetricsListenerMutator());
+      }
+      builder.addMethod(getFindByMergeResultMethod());
+      builder.addMethod(getFindByMergeResultEntriesMethod());
+      builder.addMethod(getCountMergedSourcesMethod());
       builder.addMethod(getMergeMethod());
+      builder.addMethod(getMergeListMethod());
+      builder.addMethod(getDoMergeMethod());
+      builder.addMethod(getMarkMergedMethod());
+      builder.addMethod(getMergeFieldsMethod());
+      builder.addMethod(getMergeAllMethod());
+      builder.addMethod(getMergeAllWithChunkSizeMethod());
+      builder.addMethod(getMergeChunkMethod());
+      builder.addMethod(getPreviewMergeMethod());
+      builder.addMethod(getAnalyzeConflictsMethod());
+      
+      // Duplicates detection is only available when matching fields are specified.
+      if (!matchFields.isEmpty()){
+         builder.addMethod(getFindMergeCandidatesMethod(false));
+         if (identifierField != null){
+            builder.addMethod(getFindMergeCandidatesMethod(true));
+         }
+      }
+      
+      // Lineage finders and streaming merge need a single identifier to query by.
+      if (identifierField != null){
+         builder.addMethod(getFindMergeAncestorsMethod());
+         builder.addMethod(getFindMergeLeavesMethod());
+         if (linkEntity == null){
+            builder.addMethod(getMergeRootAccessor());
+         }
+         builder.addMethod(getFindCanonicalMethod());
+         builder.addMethod(getMergeAllInParallelMethod());
+         builder.addMethod(getMergeAllInParallelWithExecutorMethod());
+         builder.addMethod(getMergeGroupsByIdsMethod());
+         if (canMergeInDatabase()){
+            builder.addMethod(getMergeByIdsMethod());
+         }
+         if (live){
+            builder.addMethod(getSnapshotMergeableFieldsMethod());
+            builder.addMethod(getTrackMergeableChangesMethod());
+            builder.addMethod(getRefreshMergeResultMethod());
+         }
+         builder.addMethod(getMergeExecutorAccessor());
+         builder.addMethod(getMergeExecutorMutator());
+         builder.addMethod(getMergeAsyncMethod());
+         builder.addMethod(getMergeAsyncListMethod());
+         builder.addMethod(getMergeAllAsyncMethod());
+         builder.addMethod(getSubmitMergeMethod());
+         if (!getOrderableFields().isEmpty()){
+            builder.addMethod(getMergeStreamMethod());
+            builder.addMethod(getMergeStreamWithChunkSizeMethod());
+            builder.addMethod(getMergeStreamChunkMethod());
+         }
+      }
 
       // Create a representation of the desired output ITD
       itdTypeDetails = builder.build();
    }
+   
+   /**
+    * Create metadata reusing the fields, methods and imports generated by previous metadata of the same governor,
+    * for a governor whose physical type has been parsed again. Only valid when neither the governor nor the other 
+    * types the previous metadata has been built from have changed since.
+    * @param previous The previous metadata of the governor
+    * @param governorPhysicalTypeMetadata The current physical type metadata of the governor
+    */
+   MergeableMetadata(MergeableMetadata previous, PhysicalTypeMetadata governorPhysicalTypeMetadata) {
+      super(previous.getId(), previous.aspectName, governorPhysicalTypeMetadata);
+      for (final JavaType registeredImport : previous.builder.getImportRegistrationResolver().getRegisteredImports()){
+         builder.getImportRegistrationResolver().addImport(registeredImport);
+      }
+      for (final FieldMetadata field : previous.itdTypeDetails.getDeclaredFields()){
+         builder.addField(field);
+      }
+      for (final MethodMetadata method : previous.itdTypeDetails.getDeclaredMethods()){
+         builder.addMethod(method);
+      }
+      itdTypeDetails = builder.build();
+   }
 
    /**
     * Create metadata for the mergeResult field definition. 
@@ -92,7 +313,8 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
     */
    private FieldMetadata getMainReferenceField() {
       List<AnnotationMetadataBuilder> annotations = new ArrayList<AnnotationMetadataBuilder>();
-      annotations.add(new AnnotationMetadataBuilder(ONE_TO_ONE));
+      annotations.add(getReferenceAnnotation(ONE_TO_ONE));
+      addIndexAnnotation(annotations, "merge_main_reference");
       
       // Using the FieldMetadataBuilder to create the field definition. 
       final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
@@ -110,7 +332,8 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
     */
    private FieldMetadata getSecondReferenceField() {
       List<AnnotationMetadataBuilder> annotations = new ArrayList<AnnotationMetadataBuilder>();
-      annotations.add(new AnnotationMetadataBuilder(ONE_TO_ONE));
+      annotations.add(getReferenceAnnotation(ONE_TO_ONE));
+      addIndexAnnotation(annotations, "merge_second_reference");
       
       // Using the FieldMetadataBuilder to create the field definition. 
       final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
@@ -128,7 +351,8 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
     */
    private FieldMetadata getMergeResultField() {
       List<AnnotationMetadataBuilder> annotations = new ArrayList<AnnotationMetadataBuilder>();
-      annotations.add(new AnnotationMetadataBuilder(MANY_TO_ONE));
+      annotations.add(getReferenceAnnotation(MANY_TO_ONE));
+      addIndexAnnotation(annotations, "merge_result");
 
       // Using the FieldMetadataBuilder to create the field definition. 
       final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
@@ -140,6 +364,66 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       return fieldBuilder.build(); // Build and return a FieldMetadata instance
    }
 
+   /**
+    * Create metadata for the mergeRoot field definition. The field references the current merge result 
+    * an entity has been merged into, directly or through intermediate merges.
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getMergeRootField() {
+      List<AnnotationMetadataBuilder> annotations = new ArrayList<AnnotationMetadataBuilder>();
+      annotations.add(getReferenceAnnotation(MANY_TO_ONE));
+      addIndexAnnotation(annotations, "merge_root");
+
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE, 
+            annotations,
+            new JavaSymbolName("mergeRoot"), // Field name
+            getJavaType(getId())); // Field type
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+
+   /**
+    * Create metadata for the mergeIndex field definition. The field holds the position of an entity among the sources 
+    * of its merge result, only for sources after the second one, so that live merges can merge them again in order.
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getMergeIndexField() {
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE, 
+            new ArrayList<AnnotationMetadataBuilder>(),
+            new JavaSymbolName("mergeIndex"), // Field name
+            JavaType.INT_OBJECT); // Field type
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+
+   /**
+    * Create the mapping annotation of a reference field, using the configured fetch type. 
+    * @param relationType The type of relation annotation
+    * @return an AnnotationMetadataBuilder object
+    */
+   private AnnotationMetadataBuilder getReferenceAnnotation(JavaType relationType) {
+      AnnotationMetadataBuilder annotation = new AnnotationMetadataBuilder(relationType);
+      annotation.addEnumAttribute("fetch", FETCH_TYPE, annotationValues.getFetch());
+      return annotation;
+   }
+   
+   /**
+    * Add an index hint on a reference field foreign key if the JPA provider supports it.
+    * @param annotations The annotations of the field
+    * @param columnSuffix Suffix used for naming the index
+    */
+   private void addIndexAnnotation(List<AnnotationMetadataBuilder> annotations, String columnSuffix) {
+      if (indexHints){
+         AnnotationMetadataBuilder annotation = new AnnotationMetadataBuilder(HIBERNATE_INDEX);
+         annotation.addStringAttribute("name", entityName.toLowerCase() + "_" + columnSuffix + "_idx");
+         annotations.add(annotation);
+      }
+   }
+   
    private MethodMetadata getMainReferenceAccessor() {
       // Specify the desired method name
       JavaSymbolName methodName = new JavaSymbolName("getMergeMainReference");
@@ -158,7 +442,11 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       
       // Create the method body
       InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-      bodyBuilder.appendFormalLine("return this.mergeMainReference;");
+      if (linkEntity != null){
+         appendLinkedEntity(bodyBuilder, "resultId", "sourceId", "MAIN");
+      } else {
+         bodyBuilder.appendFormalLine("return this.mergeMainReference;");
+      }
       
       // Use the MethodMetadataBuilder for easy creation of MethodMetadata
       MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
@@ -185,7 +473,11 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       
       // Create the method body
       InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-      bodyBuilder.appendFormalLine("return this.mergeSecondReference;");
+      if (linkEntity != null){
+         appendLinkedEntity(bodyBuilder, "resultId", "sourceId", "SECOND");
+      } else {
+         bodyBuilder.appendFormalLine("return this.mergeSecondReference;");
+      }
       
       // Use the MethodMetadataBuilder for easy creation of MethodMetadata
       MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
@@ -212,7 +504,11 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       
       // Create the method body
       InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-      bodyBuilder.appendFormalLine("return this.mergeResult;");
+      if (linkEntity != null){
+         appendLinkedEntity(bodyBuilder, "sourceId", "resultId", null);
+      } else {
+         bodyBuilder.appendFormalLine("return this.mergeResult;");
+      }
       
       // Use the MethodMetadataBuilder for easy creation of MethodMetadata
       MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
@@ -221,113 +517,2552 @@ public class MergeableMetadata extends AbstractItdTypeDetailsProvidingMetadataIt
       return methodBuilder.build(); // Build and return a MethodMetadata instance
    }
    
-   private MethodMetadata getMergeMethod() {
+   private MethodMetadata getFindByMergeResultMethod() {
       // Specify the desired method name
-      JavaSymbolName methodName = new JavaSymbolName("merge");
+      JavaSymbolName methodName = new JavaSymbolName("find" + plural + "ByMergeResult");
 
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination);
+      
       // Check if a method with the same signature already exists in the target type
-      final MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
       if (method != null) {
-         // If it already exists, just return the method and omit its generation via the ITD
          return method;
       }
-
-      // Define method parameter types
-      List<JavaType> parameterTypes = Arrays.asList(getJavaType(getId()));
       
       // Define method parameter names
-      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("second"));
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("mergeResult"));
 
       // Create the method body
       InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-      bodyBuilder.appendFormalLine(entityName + " merge = new " + entityName + "();");
-      bodyBuilder.appendFormalLine("merge.mergeMainReference = this;");
-      bodyBuilder.appendFormalLine("merge.mergeSecondReference = second;");
-      for (final FieldMetadata field : mergeableFields){
-         bodyBuilder.appendFormalLine("if (this." + field.getFieldName() + " != null){");
-         bodyBuilder.appendFormalLine("   merge." + field.getFieldName() + " = this." + field.getFieldName() + ";");
-         bodyBuilder.appendFormalLine("} else if (second." + field.getFieldName() + " != null){");
-         bodyBuilder.appendFormalLine("   merge." + field.getFieldName() + " = second." + field.getFieldName() + ";");
-         bodyBuilder.appendFormalLine("}");
-      }
-      bodyBuilder.appendFormalLine("merge.persist();");
-      bodyBuilder.appendFormalLine("this.mergeResult = merge;");
-      bodyBuilder.appendFormalLine("this.merge();");
-      bodyBuilder.appendFormalLine("second.mergeResult = merge;");
-      bodyBuilder.appendFormalLine("second.merge();");
-      bodyBuilder.appendFormalLine("return merge;");
+      appendMergeResultCheck(bodyBuilder);
+      bodyBuilder.appendFormalLine("return entityManager().createQuery(\"" + getMergedSourcesQuery("o") + "\", " 
+            + entityName + ".class).setParameter(\"mergeResult\", " + getMergeResultParameter() + ").getResultList();");
 
       // Use the MethodMetadataBuilder for easy creation of MethodMetadata
-      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
-            destination, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
 
       return methodBuilder.build(); // Build and return a MethodMetadata instance
    }
    
-   private MethodMetadata getWasMergedMethod() {
+   private MethodMetadata getFindByMergeResultEntriesMethod() {
       // Specify the desired method name
-      JavaSymbolName methodName = new JavaSymbolName("wasMerged");
+      JavaSymbolName methodName = new JavaSymbolName("find" + plural + "ByMergeResult");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination, JavaType.INT_PRIMITIVE, JavaType.INT_PRIMITIVE);
       
       // Check if a method with the same signature already exists in the target type
-      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
       if (method != null) {
          return method;
       }
       
-      // Define method parameter types (none in this case)
-      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("mergeResult"), 
+            new JavaSymbolName("firstResult"), new JavaSymbolName("maxResults"));
+
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      appendMergeResultCheck(bodyBuilder);
+      bodyBuilder.appendFormalLine("return entityManager().createQuery(\"" + getMergedSourcesQuery("o") + "\", " 
+            + entityName + ".class).setParameter(\"mergeResult\", " + getMergeResultParameter() 
+            + ").setFirstResult(firstResult).setMaxResults(maxResults).getResultList();");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getCountMergedSourcesMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("countMergedSources");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination);
       
-      // Define method parameter names (none in this case)
-      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
       
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("mergeResult"));
+
       // Create the method body
       InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-      bodyBuilder.appendFormalLine("return (this.mergeResult != null);");
-      
+      appendMergeResultCheck(bodyBuilder);
+      bodyBuilder.appendFormalLine("return entityManager().createQuery(\"" + getMergedSourcesQuery("COUNT(o)") + "\", " 
+            + "Long.class).setParameter(\"mergeResult\", " + getMergeResultParameter() + ").getSingleResult();");
+
       // Use the MethodMetadataBuilder for easy creation of MethodMetadata
-      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
-            new JavaType(boolean.class), parameterTypes, parameterNames, bodyBuilder);
-      
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.LONG_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
       return methodBuilder.build(); // Build and return a MethodMetadata instance
    }
    
-   private MethodMetadata getIsMergeResultMethod() {
+   /**
+    * Append the mandatory check of a mergeResult argument to a method body.
+    * @param bodyBuilder The body of the method
+    */
+   private void appendMergeResultCheck(InvocableMemberBodyBuilder bodyBuilder) {
+      bodyBuilder.appendFormalLine("if (mergeResult == null){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"The mergeResult argument is required\");");
+      bodyBuilder.appendFormalLine("}");
+   }
+   
+   /**
+    * Get the query of the sources of a merge result (as mergeResult parameter).
+    * @param select The select clause, entities being aliased as o
+    * @return The JPQL query
+    */
+   private String getMergedSourcesQuery(String select) {
+      if (linkEntity != null){
+         return getLinkedQuery(select, "resultId = :mergeResult", "sourceId", null);
+      }
+      return "SELECT " + select + " FROM " + entityName + " o WHERE o.mergeResult = :mergeResult";
+   }
+   
+   /** @return the expression of the mergeResult parameter of {@link #getMergedSourcesQuery(String)} */
+   private String getMergeResultParameter() {
+      return linkEntity != null ? getFieldValue("mergeResult", identifierField) : "mergeResult";
+   }
+   
+   /**
+    * Tell if merges can be done by the database through mergeByIds(). This requires Hibernate for HQL INSERT ... SELECT, 
+    * lineage held by the entity, and every field to be mergeable using SQL expressions: collections other than children 
+    * and CUSTOM strategies are merged in Java only, references are only merged using FIRST_NON_NULL.
+    * @return true if mergeByIds() can be generated
+    */
+   private boolean canMergeInDatabase() {
+      if (!hibernateProvider || identifierField == null || linkEntity != null || !getUnionCollectionFields().isEmpty()){
+         return false;
+      }
+      for (final FieldMetadata field : mergeableFields){
+         if (field.getAnnotation(MANY_TO_ONE) != null || field.getAnnotation(ONE_TO_ONE) != null){
+            if (getStrategy(field) != MergeStrategy.FIRST_NON_NULL){
+               return false;
+            }
+         } else if (getDatabaseMergeExpression(field) == null){
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   /**
+    * Get the HQL expression merging the values of a field from a main source aliased as a and a second source 
+    * aliased as b, with the same semantic as mergeFields().
+    * @param field The field to merge
+    * @return The expression, or null if the strategy of field cannot be applied by the database
+    */
+   private String getDatabaseMergeExpression(FieldMetadata field) {
+      final boolean primitive = field.getFieldType().isPrimitive();
+      final String a = "a." + field.getFieldName();
+      final String b = "b." + field.getFieldName();
+      final String operator = getStrategy(field) == MergeStrategy.MAX ? ">" : "<";
+      
+      switch (getStrategy(field)){
+         case FIRST_NON_NULL:
+            return primitive ? a : "COALESCE(" + a + ", " + b + ")";
+         case LATEST:
+            final String latestFirst = primitive ? b : "COALESCE(" + b + ", " + a + ")";
+            if (versionField == null){
+               // Without version, the last source is the latest one.
+               return latestFirst;
+            }
+            final String version = versionField.getFieldName().getSymbolName();
+            final String secondIsLatest = versionField.getFieldType().isPrimitive() ? "b." + version + " > a." + version 
+                  : "b." + version + " IS NOT NULL AND (a." + version + " IS NULL OR b." + version + " > a." + version + ")";
+            return "CASE WHEN " + secondIsLatest + " THEN " + latestFirst + " ELSE " + (primitive ? a : "COALESCE(" + a + ", " + b + ")") + " END";
+         case LONGEST:
+            return "CASE WHEN " + b + " IS NOT NULL AND (" + a + " IS NULL OR LENGTH(" + b + ") > LENGTH(" + a + ")) THEN " + b + " ELSE " + a + " END";
+         case MAX:
+         case MIN:
+            return "CASE WHEN " + (primitive ? "" : a + " IS NULL OR ") + b + " " + operator + " " + a + " THEN " + b + " ELSE " + a + " END";
+         case SUM:
+            return primitive ? a + " + " + b 
+                  : "CASE WHEN " + a + " IS NULL THEN " + b + " WHEN " + b + " IS NULL THEN " + a + " ELSE " + a + " + " + b + " END";
+         default:
+            return null;
+      }
+   }
+   
+   /**
+    * Append the bulk updates recording lineage of sources whose identifiers are held by an ids variable into merge 
+    * result held by a merge variable: sources stamping, merge roots compression and children re-parenting.
+    * Rows touched are counted into a rows variable if metrics are enabled.
+    * @param bodyBuilder The body of the method
+    */
+   private void appendLineageUpdates(InvocableMemberBodyBuilder bodyBuilder) {
+      StringBuilder update = new StringBuilder("UPDATE " + entityName + " o SET o.mergeResult = :merge, o.mergeRoot = :merge");
+      appendVersionIncrement(update);
+      update.append(" WHERE o.").append(identifierField.getFieldName()).append(" IN (:ids) AND o.mergeResult IS NULL");
+      final String updateStatement = "em.createQuery(\"" + update + "\").setParameter(\"merge\", merge).setParameter(\"ids\", ids).executeUpdate()";
+      if (metricsListener != null){
+         // Keep track of the number of rows touched for reporting it.
+         bodyBuilder.appendFormalLine("int rows = " + updateStatement + ";");
+         bodyBuilder.appendFormalLine("if (rows != ids.size()){");
+      } else {
+         bodyBuilder.appendFormalLine("if (" + updateStatement + " != ids.size()){");
+      }
+      bodyBuilder.appendFormalLine("   throw new " + getTypeName(OPTIMISTIC_LOCK_EXCEPTION) + "(\"" + entityName + " sources have already been merged\");");
+      bodyBuilder.appendFormalLine("}");
+      // Path compression: entities previously merged into sources get the new merge result as root, whatever 
+      // the length of the chain. Roots are never deeper than one level so a single bulk update is enough. Versions 
+      // are left unchanged, these entities are not merged here: an outdated root saved back by a stale instance is 
+      // harmless as findCanonical() follows merge results from the root it reads.
+      StringBuilder compression = new StringBuilder("UPDATE " + entityName + " o SET o.mergeRoot = :merge");
+      compression.append(" WHERE o.mergeRoot.").append(identifierField.getFieldName()).append(" IN (:ids)");
+      bodyBuilder.appendFormalLine((metricsListener != null ? "rows += " : "") + "em.createQuery(\"" + compression 
+            + "\").setParameter(\"merge\", merge).setParameter(\"ids\", ids).executeUpdate();");
+      for (final FieldMetadata field : collectionFields){
+         if (collectionMappedBy.containsKey(field.getFieldName())){
+            bodyBuilder.appendFormalLine((metricsListener != null ? "rows += " : "") + "em.createQuery(\"" 
+                  + getReparentingUpdate(field, "." + identifierField.getFieldName() + " IN (:ids)") 
+                  + "\").setParameter(\"merge\", merge).setParameter(\"ids\", ids).executeUpdate();");
+         }
+      }
+   }
+   
+   /**
+    * Get the condition telling two values of a field differ, the first value being an object.
+    * @param value The first value
+    * @param other The other value
+    * @param primitive Whether the other value is primitive, in which case it is boxed for comparison
+    * @return The Java condition
+    */
+   private String getDifference(String value, String other, boolean primitive) {
+      if (primitive){
+         return "!" + value + ".equals(" + other + ")";
+      }
+      return "!(" + value + " == null ? " + other + " == null : " + value + ".equals(" + other + "))";
+   }
+   
+   /**
+    * Append the increment of the version field, if any, to the SET clause of a bulk update of entities aliased as o.
+    * @param update The bulk update statement
+    */
+   private void appendVersionIncrement(StringBuilder update) {
+      if (versionField != null){
+         update.append(", o.").append(versionField.getFieldName()).append(" = o.").append(versionField.getFieldName()).append(" + 1");
+      }
+   }
+   
+   /** @return the JPQL condition telling an entity aliased as o has not been merged yet */
+   private String getUnmergedCondition() {
+      if (linkEntity != null){
+         return "NOT EXISTS (SELECT l FROM " + linkEntity.getSimpleTypeName() + " l WHERE l.entityType = '" + entityName 
+               + "' AND l.sourceId = o." + identifierField.getFieldName() + ")";
+      }
+      return "o.mergeResult IS NULL";
+   }
+   
+   /**
+    * Get a query of entities joined to links of the link table.
+    * @param select The select clause, entities being aliased as o
+    * @param linkCondition The condition on links, without their l alias
+    * @param joinColumn The column of links holding the identifier of entities to select
+    * @param role The role links should have, any role if null
+    * @return The JPQL query
+    */
+   private String getLinkedQuery(String select, String linkCondition, String joinColumn, String role) {
+      return "SELECT " + select + " FROM " + entityName + " o, " + linkEntity.getSimpleTypeName() + " l WHERE l.entityType = '" 
+            + entityName + "' AND l." + linkCondition + (role != null ? " AND l.role = '" + role + "'" : "") 
+            + " AND o." + identifierField.getFieldName() + " = l." + joinColumn;
+   }
+   
+   /**
+    * Append the code returning the entity linked to this one, or null if there is none.
+    * @param bodyBuilder The body of the method
+    * @param linkColumn The column of links holding the identifier of this entity
+    * @param joinColumn The column of links holding the identifier of the entity to return
+    * @param role The role of the link, any role if null
+    */
+   private void appendLinkedEntity(InvocableMemberBodyBuilder bodyBuilder, String linkColumn, String joinColumn, String role) {
+      final String id = getFieldValue("this", identifierField);
+      bodyBuilder.appendFormalLine("if (" + id + " == null){");
+      bodyBuilder.appendFormalLine("   return null;");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " linked = entityManager().createQuery(\"" 
+            + getLinkedQuery("o", linkColumn + " = :id", joinColumn, role) + "\", " + entityName + ".class).setParameter(\"id\", " 
+            + id + ").setMaxResults(1).getResultList();");
+      bodyBuilder.appendFormalLine("return linked.isEmpty() ? null : linked.get(0);");
+   }
+   
+   /**
+    * Append the code telling if a link references this entity.
+    * @param bodyBuilder The body of the method
+    * @param linkColumn The column of links holding the identifier of this entity
+    */
+   private void appendLinkExists(InvocableMemberBodyBuilder bodyBuilder, String linkColumn) {
+      bodyBuilder.appendFormalLine(getTypeName(getObjectType(identifierField.getFieldType())) + " id = " 
+            + getFieldValue("this", identifierField) + ";");
+      bodyBuilder.appendFormalLine("return id != null && entityManager().createQuery(\"SELECT COUNT(l) FROM " + linkEntity.getSimpleTypeName() 
+            + " l WHERE l.entityType = '" + entityName + "' AND l." + linkColumn + " = :id\", Long.class).setParameter(\"id\", id).getSingleResult() > 0;");
+   }
+   
+   /**
+    * Append the code of markMerged() recording lineage into the link table : a link is inserted per source 
+    * (batched by the JDBC driver when flushed) and entity rows are left untouched, apart from re-parented children. 
+    * A source merged elsewhere makes this merge fail, the unique constraint of the link table covering concurrent merges.
+    * @param bodyBuilder The body of the method
+    */
+   private void appendMergeLinks(InvocableMemberBodyBuilder bodyBuilder) {
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      final String link = getTypeName(linkEntity);
+      bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " ids = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(sources.size());");
+      bodyBuilder.appendFormalLine("for (" + entityName + " source : sources){");
+      bodyBuilder.appendFormalLine("   ids.add(" + getFieldValue("source", identifierField) + ");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("if (em.createQuery(\"SELECT COUNT(l) FROM " + linkEntity.getSimpleTypeName() + " l WHERE l.entityType = '" 
+            + entityName + "' AND l.sourceId IN (:ids)\", Long.class).setParameter(\"ids\", ids).getSingleResult() > 0){");
+      bodyBuilder.appendFormalLine("   throw new " + getTypeName(OPTIMISTIC_LOCK_EXCEPTION) + "(\"" + entityName + " sources have already been merged\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(DATE) + " mergedAt = new " + getTypeName(DATE) + "();");
+      bodyBuilder.appendFormalLine(getTypeName(idType) + " mergeId = " + getFieldValue("merge", identifierField) + ";");
+      bodyBuilder.appendFormalLine("for (int i = 0; i < ids.size(); i++){");
+      bodyBuilder.appendFormalLine("   em.persist(new " + link + "(\"" + entityName + "\", ids.get(i), mergeId, i == 0 ? " + link + ".MAIN : (i == 1 ? " 
+            + link + ".SECOND : " + link + ".SOURCE), mergedAt));");
+      bodyBuilder.appendFormalLine("}");
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine("int rows = ids.size();");
+      }
+      // Path compression: links of entities previously merged into sources get the new merge result as root.
+      bodyBuilder.appendFormalLine((metricsListener != null ? "rows += " : "") + "em.createQuery(\"UPDATE " + linkEntity.getSimpleTypeName() 
+            + " l SET l.rootId = :mergeId WHERE l.entityType = '" + entityName 
+            + "' AND l.rootId IN (:ids)\").setParameter(\"mergeId\", mergeId).setParameter(\"ids\", ids).executeUpdate();");
+      for (final FieldMetadata field : collectionFields){
+         if (collectionMappedBy.containsKey(field.getFieldName())){
+            bodyBuilder.appendFormalLine((metricsListener != null ? "rows += " : "") + "em.createQuery(\"" 
+                  + getReparentingUpdate(field, "." + identifierField.getFieldName() + " IN (:ids)") 
+                  + "\").setParameter(\"merge\", merge).setParameter(\"ids\", ids).executeUpdate();");
+         }
+      }
+   }
+   
+   private MethodMetadata getMergeMethod() {
       // Specify the desired method name
-      JavaSymbolName methodName = new JavaSymbolName("isMergeResult");
+      JavaSymbolName methodName = new JavaSymbolName("merge");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination);
       
       // Check if a method with the same signature already exists in the target type
-      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
       if (method != null) {
+         // If it already exists, just return the method and omit its generation via the ITD
          return method;
       }
       
-      // Define method parameter types (none in this case)
-      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("second"));
+
+      // Create the method body. A pairwise merge is just a merge with a single other source.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return merge(" + getTypeName(COLLECTIONS) + ".singletonList(second));");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            destination, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(TRANSACTIONAL));
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeListMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("merge");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getListType(destination));
       
-      // Define method parameter names (none in this case)
-      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
       
-      // Create the method body
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("others"));
+
+      // Create the method body. All the sources are merged at once into a single result, everything happens 
+      // within a single transaction with a single flush.
       InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
-      bodyBuilder.appendFormalLine("return (this.mergeMainReference != null);");
-      
+      bodyBuilder.appendFormalLine("if (others == null || others.isEmpty()){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"At least one other " + entityName + " is required for merging\");");
+      bodyBuilder.appendFormalLine("}");
+      appendMetricsStart(bodyBuilder);
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " sources = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(others.size() + 1);");
+      bodyBuilder.appendFormalLine("sources.add(this);");
+      bodyBuilder.appendFormalLine("sources.addAll(others);");
+      bodyBuilder.appendFormalLine(entityName + " merge = doMerge(sources, em);");
+      appendFlush(bodyBuilder);
+      bodyBuilder.appendFormalLine("markMerged(merge, sources, em);");
+      appendMergesCompleted(bodyBuilder, "1");
+      bodyBuilder.appendFormalLine("return merge;");
+
       // Use the MethodMetadataBuilder for easy creation of MethodMetadata
       MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
-            new JavaType(boolean.class), parameterTypes, parameterNames, bodyBuilder);
+            destination, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(TRANSACTIONAL));
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getDoMergeMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("doMerge");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getListType(destination), ENTITY_MANAGER);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
       
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("sources"), new JavaSymbolName("em"));
+
+      // Create the method body. Main and second references keep track of the first two sources, flushing is 
+      // left to the caller so that many merges can share a single flush.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      appendMetricsStart(bodyBuilder);
+      bodyBuilder.appendFormalLine(entityName + " merge = new " + entityName + "();");
+      if (linkEntity == null){
+         bodyBuilder.appendFormalLine("merge.mergeMainReference = sources.get(0);");
+         bodyBuilder.appendFormalLine("merge.mergeSecondReference = sources.get(1);");
+      }
+      bodyBuilder.appendFormalLine("mergeFields(merge, sources);");
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine("long fieldsEnd = listener != null ? System.nanoTime() : 0L;");
+         bodyBuilder.appendFormalLine("em.persist(merge);");
+         bodyBuilder.appendFormalLine("if (listener != null){");
+         bodyBuilder.appendFormalLine("   listener.phaseCompleted(" + entityName + ".class, " + getTypeName(metricsListener) + ".FIELDS, fieldsEnd - start, 0);");
+         bodyBuilder.appendFormalLine("   listener.phaseCompleted(" + entityName + ".class, " + getTypeName(metricsListener) + ".PERSIST, System.nanoTime() - fieldsEnd, 1);");
+         bodyBuilder.appendFormalLine("}");
+      } else {
+         bodyBuilder.appendFormalLine("em.persist(merge);");
+      }
+      bodyBuilder.appendFormalLine("return merge;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PRIVATE | Modifier.STATIC, methodName, 
+            destination, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
       return methodBuilder.build(); // Build and return a MethodMetadata instance
    }
+   
+   private MethodMetadata getMarkMergedMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("markMerged");
 
-   private MethodMetadata methodExists(JavaSymbolName methodName, List<AnnotatedJavaType> paramTypes) {
-      // We have no access to method parameter information, so we scan by name alone and treat any match as authoritative
-      // We do not scan the superclass, as the caller is expected to know we'll only scan the current class
-      for (MethodMetadata method : governorTypeDetails.getDeclaredMethods()) {
-         if (method.getMethodName().equals(methodName) && method.getParameterTypes().equals(paramTypes)) {
-            // Found a method of the expected name; we won't check method parameters though
-            return method;
-         }
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination, getListType(destination), ENTITY_MANAGER);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
       }
-      return null;
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("merge"), new JavaSymbolName("sources"), 
+            new JavaSymbolName("em"));
+
+      // Create the method body.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      appendMetricsStart(bodyBuilder);
+      if (linkEntity != null){
+         appendMergeLinks(bodyBuilder);
+      } else if (identifierField != null){
+         // Sources are stamped with a single bulk update (the merge result must have been flushed before). Detached 
+         // sources are then updated in memory, versions included. Managed sources have to be refreshed as their state 
+         // is stale: flushing them would issue updates with an outdated version. They stay managed so that later changes 
+         // are still saved. Chunk methods clear the persistence context before marking sources, so that only a single 
+         // merge() within a caller transaction pays for refreshing its few sources.
+         // Only unmerged sources are updated so that a source concurrently merged elsewhere makes this merge fail.
+         final JavaType idType = getObjectType(identifierField.getFieldType());
+         bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " ids = new " 
+               + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(sources.size());");
+         bodyBuilder.appendFormalLine("for (" + entityName + " source : sources){");
+         bodyBuilder.appendFormalLine("   ids.add(" + getFieldValue("source", identifierField) + ");");
+         bodyBuilder.appendFormalLine("}");
+         appendLineageUpdates(bodyBuilder);
+         if (live){
+            // Position of sources after the second one, which the merge result does not reference.
+            bodyBuilder.appendFormalLine("for (int i = 2; i < ids.size(); i++){");
+            bodyBuilder.appendFormalLine("   " + (metricsListener != null ? "rows += " : "") + "em.createQuery(\"UPDATE " + entityName 
+                  + " o SET o.mergeIndex = :index WHERE o." + identifierField.getFieldName() 
+                  + " = :id\").setParameter(\"index\", i).setParameter(\"id\", ids.get(i)).executeUpdate();");
+            bodyBuilder.appendFormalLine("   sources.get(i).mergeIndex = i;");
+            bodyBuilder.appendFormalLine("}");
+         }
+         bodyBuilder.appendFormalLine("for (" + entityName + " source : sources){");
+         bodyBuilder.appendFormalLine("   if (em.contains(source)){");
+         bodyBuilder.appendFormalLine("      em.refresh(source);");
+         bodyBuilder.appendFormalLine("      continue;");
+         bodyBuilder.appendFormalLine("   }");
+         bodyBuilder.appendFormalLine("   source.mergeResult = merge;");
+         bodyBuilder.appendFormalLine("   source.mergeRoot = merge;");
+         if (versionField != null){
+            // Also reflect the version increment in memory so that detached sources can still be merged afterwards.
+            final String version = getFieldValue("source", versionField);
+            final String increment = versionMutator != null ? "source." + versionMutator + "(" + version + " + 1);" 
+                  : "source." + versionField.getFieldName() + "++;";
+            if (versionField.getFieldType().isPrimitive()){
+               bodyBuilder.appendFormalLine("   " + increment);
+            } else {
+               bodyBuilder.appendFormalLine("   if (" + version + " != null){");
+               bodyBuilder.appendFormalLine("      " + increment);
+               bodyBuilder.appendFormalLine("   }");
+            }
+         }
+         bodyBuilder.appendFormalLine("}");
+      } else {
+         // Without a single identifier to query by, sources are updated one by one.
+         if (metricsListener != null){
+            bodyBuilder.appendFormalLine("int rows = sources.size();");
+         }
+         bodyBuilder.appendFormalLine("for (" + entityName + " source : sources){");
+         bodyBuilder.appendFormalLine("   source.mergeResult = merge;");
+         bodyBuilder.appendFormalLine("   if (!em.contains(source)){");
+         bodyBuilder.appendFormalLine("      em.merge(source);");
+         bodyBuilder.appendFormalLine("   }");
+         bodyBuilder.appendFormalLine("}");
+         appendFlush(bodyBuilder);
+         for (final FieldMetadata field : collectionFields){
+            if (collectionMappedBy.containsKey(field.getFieldName())){
+               bodyBuilder.appendFormalLine((metricsListener != null ? "rows += " : "") + "em.createQuery(\"" 
+                     + getReparentingUpdate(field, " IN (:sources)") 
+                     + "\").setParameter(\"merge\", merge).setParameter(\"sources\", sources).executeUpdate();");
+            }
+         }
+      }
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine("if (listener != null){");
+         bodyBuilder.appendFormalLine("   listener.phaseCompleted(" + entityName + ".class, " + getTypeName(metricsListener) 
+               + ".MARK, System.nanoTime() - start, rows);");
+         bodyBuilder.appendFormalLine("}");
+      }
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PRIVATE | Modifier.STATIC, methodName, 
+            JavaType.VOID_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeFieldsMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeFields");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination, getListType(destination));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("merge"), new JavaSymbolName("sources"));
+
+      // Create the method body. Sources are browsed once, each field being merged according to its strategy 
+      // (the first non null value wins by default). Strategies are emitted as straight code, without any reflection.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      List<FieldMetadata> latestFields = getFieldsWithStrategy(MergeStrategy.LATEST);
+      if (!latestFields.isEmpty()){
+         appendLatestSource(bodyBuilder);
+         for (final FieldMetadata field : latestFields){
+            bodyBuilder.appendFormalLine("merge." + field.getFieldName() + " = " + getFieldValue("latest", field) + ";");
+         }
+      }
+      for (final FieldMetadata field : getUnionCollectionFields()){
+         if (elementIdAccessors.containsKey(field.getFieldName())){
+            bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(SET, JavaType.OBJECT)) + " " + field.getFieldName() + "Ids = new " 
+                  + getTypeName(getParameterizedType(HASH_SET, JavaType.OBJECT)) + "();");
+         }
+      }
+      bodyBuilder.appendFormalLine("for (int i = 0; i < sources.size(); i++){");
+      bodyBuilder.appendFormalLine("   " + entityName + " source = sources.get(i);");
+      for (final FieldMetadata field : mergeableFields){
+         appendFieldMerge(bodyBuilder, field);
+      }
+      for (final FieldMetadata field : getUnionCollectionFields()){
+         appendCollectionUnion(bodyBuilder, field);
+      }
+      bodyBuilder.appendFormalLine("}");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PRIVATE | Modifier.STATIC, methodName, 
+            JavaType.VOID_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAllMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAll");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getPairsType());
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("pairs"));
+
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return mergeAll(pairs, " + annotationValues.getChunkSize() + ");");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAllWithChunkSizeMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAll");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getPairsType(), JavaType.INT_PRIMITIVE);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("pairs"), new JavaSymbolName("chunkSize"));
+
+      // Create the method body. Each chunk gets its own transaction so that the persistence context 
+      // never holds more than chunkSize merges.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (chunkSize < 1){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"Chunk size must be greater than 0\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " results = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(pairs.size());");
+      bodyBuilder.appendFormalLine("for (int i = 0; i < pairs.size(); i += chunkSize){");
+      bodyBuilder.appendFormalLine("   results.addAll(mergeChunk(pairs.subList(i, Math.min(i + chunkSize, pairs.size()))));");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return results;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeChunkMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeChunk");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getPairsType());
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("pairs"));
+
+      // Create the method body. Merges of the chunk share a single flush so that statements can be batched
+      // by the JDBC driver, the persistence context is then cleared to keep memory flat if the chunk runs
+      // into its own transaction (entities of a calling transaction are never detached).
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      appendMetricsStart(bodyBuilder);
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " results = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(pairs.size());");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(getListType(destination))) + " sourcesList = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, getListType(destination))) + "(pairs.size());");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getPairType()) + " pair : pairs){");
+      bodyBuilder.appendFormalLine("   " + getTypeName(getListType(destination)) + " sources = " + getTypeName(ARRAYS) + ".asList(pair.getKey(), pair.getValue());");
+      bodyBuilder.appendFormalLine("   sourcesList.add(sources);");
+      bodyBuilder.appendFormalLine("   results.add(doMerge(sources, em));");
+      bodyBuilder.appendFormalLine("}");
+      appendFlush(bodyBuilder);
+      appendChunkMarking(bodyBuilder, "sourcesList");
+      appendMergesCompleted(bodyBuilder, "results.size()");
+      bodyBuilder.appendFormalLine("return results;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(TRANSACTIONAL));
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getPreviewMergeMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("previewMerge");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("second"));
+
+      // Create the method body. Fields are merged as merge() does into a transient entity, which is neither persisted 
+      // nor linked to its sources: nothing is written to the database.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine(entityName + " preview = new " + entityName + "();");
+      bodyBuilder.appendFormalLine("mergeFields(preview, " + getTypeName(ARRAYS) + ".asList(this, second));");
+      bodyBuilder.appendFormalLine("return preview;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            destination, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getAnalyzeConflictsMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("analyzeConflicts");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getParameterizedType(ITERABLE, getPairType()));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("pairs"));
+
+      // Create the method body. Each pair is merged by mergeFields() into two transient entities, sources being taken 
+      // in both orders, so that conflicts are decided by the strategies of fields: a field conflicts when its merged 
+      // value depends on the order of sources, that is when its strategy cannot settle between their values (e.g. two 
+      // different values for FIRST_NON_NULL, two values of the same length for LONGEST). A collection merged by union 
+      // conflicts when each source holds elements the other one does not. Pairs are streamed from any Iterable and 
+      // only read: references are compared by identifier, without initializing lazy loading proxies, so that detached 
+      // entities can be analyzed as long as their collections are loaded. Statistics of several calls can be summed 
+      // by the caller.
+      final JavaType statisticsType = getParameterizedType(MAP, JavaType.STRING, JavaType.INT_OBJECT);
+      final List<FieldMetadata> unionFields = getUnionCollectionFields();
+      boolean references = false;
+      for (final FieldMetadata field : mergeableFields){
+         references |= field.getAnnotation(MANY_TO_ONE) != null || field.getAnnotation(ONE_TO_ONE) != null;
+      }
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      if (references){
+         bodyBuilder.appendFormalLine(getTypeName(PERSISTENCE_UNIT_UTIL) 
+               + " util = entityManager().getEntityManagerFactory().getPersistenceUnitUtil();");
+      }
+      bodyBuilder.appendFormalLine("int[] conflicts = new int[" + (mergeableFields.size() + unionFields.size()) + "];");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getPairType()) + " pair : pairs){");
+      bodyBuilder.appendFormalLine("   " + entityName + " main = pair.getKey();");
+      bodyBuilder.appendFormalLine("   " + entityName + " second = pair.getValue();");
+      bodyBuilder.appendFormalLine("   " + entityName + " merged = new " + entityName + "();");
+      bodyBuilder.appendFormalLine("   mergeFields(merged, " + getTypeName(ARRAYS) + ".asList(main, second));");
+      if (!mergeableFields.isEmpty()){
+         bodyBuilder.appendFormalLine("   " + entityName + " reversed = new " + entityName + "();");
+         bodyBuilder.appendFormalLine("   mergeFields(reversed, " + getTypeName(ARRAYS) + ".asList(second, main));");
+      }
+      for (int i = 0; i < mergeableFields.size(); i++){
+         final FieldMetadata field = mergeableFields.get(i);
+         final String merged = "merged." + field.getFieldName();
+         final String reversed = "reversed." + field.getFieldName();
+         if (field.getFieldType().isPrimitive()){
+            bodyBuilder.appendFormalLine("   if (" + merged + " != " + reversed + "){");
+         } else if (field.getAnnotation(MANY_TO_ONE) != null || field.getAnnotation(ONE_TO_ONE) != null){
+            bodyBuilder.appendFormalLine("   if (" + merged + " == null ? " + reversed + " != null : " + reversed + " == null || !util.getIdentifier(" 
+                  + merged + ").equals(util.getIdentifier(" + reversed + "))){");
+         } else {
+            bodyBuilder.appendFormalLine("   if (" + getDifference(merged, reversed, false) + "){");
+         }
+         bodyBuilder.appendFormalLine("      conflicts[" + i + "]++;");
+         bodyBuilder.appendFormalLine("   }");
+      }
+      for (int i = 0; i < unionFields.size(); i++){
+         final FieldMetadata field = unionFields.get(i);
+         final String merged = "merged." + field.getFieldName();
+         final String main = getFieldValue("main", field);
+         final String second = getFieldValue("second", field);
+         bodyBuilder.appendFormalLine("   if (" + main + " != null && " + second + " != null && " + merged + ".size() > " + main 
+               + ".size() && " + merged + ".size() > " + second + ".size()){");
+         bodyBuilder.appendFormalLine("      conflicts[" + (mergeableFields.size() + i) + "]++;");
+         bodyBuilder.appendFormalLine("   }");
+      }
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(statisticsType) + " statistics = new " 
+            + getTypeName(getParameterizedType(LINKED_HASH_MAP, JavaType.STRING, JavaType.INT_OBJECT)) + "();");
+      for (int i = 0; i < mergeableFields.size(); i++){
+         bodyBuilder.appendFormalLine("statistics.put(\"" + mergeableFields.get(i).getFieldName() + "\", conflicts[" + i + "]);");
+      }
+      for (int i = 0; i < unionFields.size(); i++){
+         bodyBuilder.appendFormalLine("statistics.put(\"" + unionFields.get(i).getFieldName() + "\", conflicts[" 
+               + (mergeableFields.size() + i) + "]);");
+      }
+      bodyBuilder.appendFormalLine("return statistics;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            statisticsType, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getFindMergeAncestorsMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("findMergeAncestors");
+
+      // Define method parameter types
+      final JavaType idType = identifierField.getFieldType();
+      List<JavaType> parameterTypes = Arrays.asList(idType);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("id"));
+
+      // Create the method body. Lineage is loaded level by level, using a single query per level : the sources 
+      // of all the merge results found at the previous level. Sources that are not merge results stop the walk.
+      final String idFieldName = identifierField.getFieldName().getSymbolName();
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (id == null){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"The id argument is required\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " ancestors = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " level = " + getTypeName(COLLECTIONS) + ".singletonList(id);");
+      bodyBuilder.appendFormalLine("while (!level.isEmpty()){");
+      final String parentsQuery = linkEntity != null ? getLinkedQuery("o", "resultId IN (:ids)", "sourceId", null) 
+            : "SELECT o FROM " + entityName + " o WHERE o.mergeResult." + idFieldName + " IN (:ids)";
+      bodyBuilder.appendFormalLine("   " + getTypeName(getListType(destination)) + " parents = em.createQuery(\"" + parentsQuery + "\", " 
+            + entityName + ".class).setParameter(\"ids\", level).getResultList();");
+      bodyBuilder.appendFormalLine("   ancestors.addAll(parents);");
+      bodyBuilder.appendFormalLine("   level = new " + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(parents.size());");
+      bodyBuilder.appendFormalLine("   for (" + entityName + " parent : parents){");
+      if (linkEntity != null){
+         // Telling merge results from other parents would cost a query, they simply have no sources at next level.
+         bodyBuilder.appendFormalLine("      level.add(" + getFieldValue("parent", identifierField) + ");");
+      } else {
+         bodyBuilder.appendFormalLine("      if (parent.mergeMainReference != null){");
+         bodyBuilder.appendFormalLine("         level.add(" + getFieldValue("parent", identifierField) + ");");
+         bodyBuilder.appendFormalLine("      }");
+      }
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return ancestors;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getFindMergeLeavesMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("findMergeLeaves");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(identifierField.getFieldType());
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("id"));
+
+      // Create the method body. Leaves are the ancestors that are not merge results themselves.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " leaves = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "();");
+      if (linkEntity != null){
+         // Merge results among ancestors are found with a single query on the link table.
+         final JavaType idType = getObjectType(identifierField.getFieldType());
+         bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " ancestors = findMergeAncestors(id);");
+         bodyBuilder.appendFormalLine("if (ancestors.isEmpty()){");
+         bodyBuilder.appendFormalLine("   return leaves;");
+         bodyBuilder.appendFormalLine("}");
+         bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " ids = new " 
+               + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(ancestors.size());");
+         bodyBuilder.appendFormalLine("for (" + entityName + " ancestor : ancestors){");
+         bodyBuilder.appendFormalLine("   ids.add(" + getFieldValue("ancestor", identifierField) + ");");
+         bodyBuilder.appendFormalLine("}");
+         bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(SET, idType)) + " results = new " 
+               + getTypeName(getParameterizedType(HASH_SET, idType)) + "(entityManager().createQuery(\"SELECT DISTINCT l.resultId FROM " 
+               + linkEntity.getSimpleTypeName() + " l WHERE l.entityType = '" + entityName + "' AND l.resultId IN (:ids)\", " 
+               + getTypeName(idType) + ".class).setParameter(\"ids\", ids).getResultList());");
+         bodyBuilder.appendFormalLine("for (" + entityName + " ancestor : ancestors){");
+         bodyBuilder.appendFormalLine("   if (!results.contains(" + getFieldValue("ancestor", identifierField) + ")){");
+      } else {
+         bodyBuilder.appendFormalLine("for (" + entityName + " ancestor : findMergeAncestors(id)){");
+         bodyBuilder.appendFormalLine("   if (ancestor.mergeMainReference == null){");
+      }
+      bodyBuilder.appendFormalLine("      leaves.add(ancestor);");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return leaves;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeRootAccessor() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("getMergeRoot");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return this.mergeRoot;");
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            destination, parameterTypes, parameterNames, bodyBuilder);
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getFindCanonicalMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("findCanonical");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getObjectType(identifierField.getFieldType()));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("id"));
+
+      // Create the method body. Merge roots being kept compressed, the surviving entity is the root of the 
+      // entity itself, or the entity if it has not been merged. Merge chains are only walked for entities merged 
+      // before merge roots were recorded, whose root is still null.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (id == null){");
+      bodyBuilder.appendFormalLine("   return null;");
+      bodyBuilder.appendFormalLine("}");
+      if (linkEntity != null){
+         // The root is read from the link of the entity, only unmerged entities need a second lookup.
+         bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " roots = entityManager().createQuery(\"" 
+               + getLinkedQuery("o", "sourceId = :id", "rootId", null) + "\", " + entityName 
+               + ".class).setParameter(\"id\", id).setMaxResults(1).getResultList();");
+         bodyBuilder.appendFormalLine("return roots.isEmpty() ? entityManager().find(" + entityName + ".class, id) : roots.get(0);");
+      } else {
+         // Entity and root are fetched at once using the primary key and the foreign key.
+         bodyBuilder.appendFormalLine(getTypeName(LIST) + "<Object[]> rows = entityManager().createQuery(\"SELECT o, r FROM " + entityName + " o LEFT JOIN o.mergeRoot r WHERE o." 
+               + identifierField.getFieldName() + " = :id\", Object[].class).setParameter(\"id\", id).getResultList();");
+         bodyBuilder.appendFormalLine("if (rows.isEmpty()){");
+         bodyBuilder.appendFormalLine("   return null;");
+         bodyBuilder.appendFormalLine("}");
+         bodyBuilder.appendFormalLine("Object[] row = rows.get(0);");
+         bodyBuilder.appendFormalLine(entityName + " canonical = (" + entityName + ") (row[1] != null ? row[1] : row[0]);");
+         bodyBuilder.appendFormalLine("while (canonical.getMergeResult() != null){");
+         bodyBuilder.appendFormalLine("   canonical = canonical.getMergeResult();");
+         bodyBuilder.appendFormalLine("}");
+         bodyBuilder.appendFormalLine("return canonical;");
+      }
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            destination, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeStreamMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeStream");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(JavaType.STRING, getParameterizedType(COMPARATOR, destination));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("orderBy"), new JavaSymbolName("matcher"));
+
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return mergeStream(orderBy, matcher, " + annotationValues.getChunkSize() + ");");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.LONG_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeStreamWithChunkSizeMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeStream");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(JavaType.STRING, getParameterizedType(COMPARATOR, destination), 
+            JavaType.INT_PRIMITIVE);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("orderBy"), new JavaSymbolName("matcher"), 
+            new JavaSymbolName("chunkSize"));
+
+      // Create the method body. Only entities existing when the stream starts are considered so that merge results 
+      // created along the way are not scanned again. Each chunk runs within its own transaction and the open group 
+      // of matching entities is the only state kept from one chunk to the next.
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      List<String> orderableNames = new ArrayList<String>();
+      for (FieldMetadata field : getOrderableFields()){
+         orderableNames.add("\"" + field.getFieldName() + "\"");
+      }
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (chunkSize < 1){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"Chunk size must be greater than 0\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("if (matcher == null){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"The matcher argument is required\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("if (!" + getTypeName(ARRAYS) + ".asList(" + StringUtils.join(orderableNames, ", ") + ").contains(orderBy)){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"Field '\" + orderBy + \"' cannot be used for ordering " + entityName + "\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(idType) + " maxId = entityManager().createQuery(\"SELECT MAX(o." + identifierField.getFieldName() 
+            + ") FROM " + entityName + " o\", " + getTypeName(idType) + ".class).getSingleResult();");
+      bodyBuilder.appendFormalLine("if (maxId == null){");
+      bodyBuilder.appendFormalLine("   return 0;");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " group = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "();");
+      bodyBuilder.appendFormalLine("long merges = 0;");
+      bodyBuilder.appendFormalLine("do {");
+      bodyBuilder.appendFormalLine("   merges += mergeStreamChunk(orderBy, matcher, maxId, group, chunkSize);");
+      bodyBuilder.appendFormalLine("} while (!group.isEmpty());");
+      bodyBuilder.appendFormalLine("return merges;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.LONG_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeStreamChunkMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeStreamChunk");
+
+      // Define method parameter types
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      List<JavaType> parameterTypes = Arrays.asList(JavaType.STRING, getParameterizedType(COMPARATOR, destination), 
+            idType, getListType(destination), JavaType.INT_PRIMITIVE);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("orderBy"), new JavaSymbolName("matcher"), 
+            new JavaSymbolName("maxId"), new JavaSymbolName("group"), new JavaSymbolName("chunkSize"));
+
+      // Create the method body. Pages are read using keyset pagination on (orderBy, identifier) so that reading stays 
+      // cheap at any depth of the table and is not disturbed by sources being marked as merged. Consecutive entities 
+      // the matcher considers equal form a group, the last group of a page is kept open for the next chunk.
+      final String idFieldName = identifierField.getFieldName().getSymbolName();
+      final String lastValue = "(SELECT p.\" + orderBy + \" FROM " + entityName + " p WHERE p." + idFieldName + " = :lastId)";
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      appendMetricsStart(bodyBuilder);
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine("String query = \"SELECT o FROM " + entityName + " o WHERE o." + idFieldName 
+            + " <= :maxId AND " + getUnmergedCondition() + " AND o.\" + orderBy + \" IS NOT NULL\";");
+      bodyBuilder.appendFormalLine("if (!group.isEmpty()){");
+      bodyBuilder.appendFormalLine("   query += \" AND (o.\" + orderBy + \" > " + lastValue + " OR (o.\" + orderBy + \" = " + lastValue 
+            + " AND o." + idFieldName + " > :lastId))\";");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(TYPED_QUERY, destination)) + " typedQuery = em.createQuery(query + \" ORDER BY o.\" + orderBy + \", o." 
+            + idFieldName + "\", " + entityName + ".class).setParameter(\"maxId\", maxId).setMaxResults(chunkSize);");
+      bodyBuilder.appendFormalLine("if (!group.isEmpty()){");
+      bodyBuilder.appendFormalLine("   typedQuery.setParameter(\"lastId\", " + getFieldValue("group.get(group.size() - 1)", identifierField) + ");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " page = typedQuery.getResultList();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(getListType(destination))) + " groups = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, getListType(destination))) + "();");
+      bodyBuilder.appendFormalLine("for (" + entityName + " candidate : page){");
+      bodyBuilder.appendFormalLine("   if (!group.isEmpty() && matcher.compare(group.get(0), candidate) != 0){");
+      bodyBuilder.appendFormalLine("      if (group.size() > 1){");
+      bodyBuilder.appendFormalLine("         groups.add(new " + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(group));");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("      group.clear();");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   group.add(candidate);");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("if (page.size() < chunkSize){");
+      bodyBuilder.appendFormalLine("   if (group.size() > 1){");
+      bodyBuilder.appendFormalLine("      groups.add(new " + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(group));");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   group.clear();");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " results = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(groups.size());");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getListType(destination)) + " sources : groups){");
+      bodyBuilder.appendFormalLine("   results.add(doMerge(sources, em));");
+      bodyBuilder.appendFormalLine("}");
+      appendFlush(bodyBuilder);
+      appendChunkMarking(bodyBuilder, "groups");
+      appendMergesCompleted(bodyBuilder, "results.size()");
+      bodyBuilder.appendFormalLine("return results.size();");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.INT_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(TRANSACTIONAL));
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getFindMergeCandidatesMethod(boolean partitioned) {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("findMergeCandidates");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = partitioned ? Arrays.asList(destination, JavaType.INT_PRIMITIVE, JavaType.INT_PRIMITIVE, JavaType.INT_PRIMITIVE) 
+            : Arrays.asList(destination, JavaType.INT_PRIMITIVE);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>(Arrays.asList(new JavaSymbolName("after"), new JavaSymbolName("maxGroups")));
+      if (partitioned){
+         parameterNames.add(new JavaSymbolName("partition"));
+         parameterNames.add(new JavaSymbolName("partitions"));
+      }
+
+      // Build the blocking key expressions and the clauses using them. Entities with a null value are never candidates.
+      // Keys after the one of the after entity are selected by comparing key parts in order, the key of the after 
+      // entity being read by sub-queries so that keys are only ever compared by the database.
+      List<String> keys = new ArrayList<String>();
+      StringBuilder notNull = new StringBuilder();
+      StringBuilder inKeys = new StringBuilder();
+      StringBuilder afterKey = new StringBuilder();
+      StringBuilder equalParts = new StringBuilder();
+      for (int i = 0; i < matchFields.size(); i++){
+         final FieldMetadata field = matchFields.get(i);
+         final boolean normalized = JavaType.STRING.equals(field.getFieldType());
+         final String key = normalized ? "LOWER(TRIM(o." + field.getFieldName() + "))" : "o." + field.getFieldName();
+         final String afterPart = "(SELECT " + (normalized ? "LOWER(TRIM(p." + field.getFieldName() + "))" : "p." + field.getFieldName()) 
+               + " FROM " + entityName + " p WHERE p = :after)";
+         keys.add(key);
+         notNull.append(" AND o.").append(field.getFieldName()).append(" IS NOT NULL");
+         inKeys.append(" AND ").append(key).append(" IN (:keys").append(i).append(")");
+         afterKey.append(i > 0 ? " OR (" : "").append(equalParts).append(key).append(" > ").append(afterPart).append(i > 0 ? ")" : "");
+         equalParts.append(key).append(" = ").append(afterPart).append(" AND ");
+      }
+      final String keyList = StringUtils.join(keys, ", ");
+      
+      // Create the method body. Keys shared by several unmerged entities are computed by the database with a single 
+      // GROUP BY, members of all the groups of the page are then loaded together with their key by a second query 
+      // and split into groups. Pages are walked through by keys, from the key of any entity of the last group of the 
+      // previous page, so that the GROUP BY only covers the next groups. With several match fields, each key part is 
+      // restricted on its own so that some extra entities may be loaded, they're dropped as their key does not belong 
+      // to the page. Partitions split groups on their lowest identifier, which does not change until the group is merged.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      if (partitioned){
+         bodyBuilder.appendFormalLine("if (partition < 0 || partition >= partitions){");
+         bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"Partition must be between 0 and \" + (partitions - 1));");
+         bodyBuilder.appendFormalLine("}");
+      }
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine("String query = \"SELECT " + keyList + " FROM " + entityName + " o WHERE " + getUnmergedCondition() + notNull + "\";");
+      bodyBuilder.appendFormalLine("if (after != null){");
+      bodyBuilder.appendFormalLine("   query += \" AND (" + afterKey + ")\";");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(QUERY) + " keysQuery = em.createQuery(query + \" GROUP BY " + keyList + " HAVING COUNT(o) > 1" 
+            + (partitioned ? " AND MOD(MIN(o." + identifierField.getFieldName() + "), :partitions) = :partition" : "") 
+            + " ORDER BY " + keyList + "\").setMaxResults(maxGroups);");
+      bodyBuilder.appendFormalLine("if (after != null){");
+      bodyBuilder.appendFormalLine("   keysQuery.setParameter(\"after\", after);");
+      bodyBuilder.appendFormalLine("}");
+      if (partitioned){
+         bodyBuilder.appendFormalLine("keysQuery.setParameter(\"partitions\", partitions).setParameter(\"partition\", partition);");
+      }
+      bodyBuilder.appendFormalLine(getTypeName(LIST) + "<?> keys = keysQuery.getResultList();");
+      bodyBuilder.appendFormalLine("if (keys.isEmpty()){");
+      bodyBuilder.appendFormalLine("   return new " + getTypeName(getParameterizedType(ARRAY_LIST, getListType(destination))) + "();");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(MAP, JavaType.OBJECT, getListType(destination))) + " groups = new " 
+            + getTypeName(getParameterizedType(LINKED_HASH_MAP, JavaType.OBJECT, getListType(destination))) + "();");
+      if (matchFields.size() == 1){
+         bodyBuilder.appendFormalLine("for (Object key : keys){");
+         bodyBuilder.appendFormalLine("   groups.put(key, new " + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "());");
+         bodyBuilder.appendFormalLine("}");
+      } else {
+         for (int i = 0; i < matchFields.size(); i++){
+            bodyBuilder.appendFormalLine(getTypeName(getListType(JavaType.OBJECT)) + " keys" + i + " = new " 
+                  + getTypeName(getParameterizedType(ARRAY_LIST, JavaType.OBJECT)) + "(keys.size());");
+         }
+         bodyBuilder.appendFormalLine("for (Object key : keys){");
+         bodyBuilder.appendFormalLine("   Object[] values = (Object[]) key;");
+         bodyBuilder.appendFormalLine("   groups.put(" + getTypeName(ARRAYS) + ".asList(values), new " 
+               + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "());");
+         for (int i = 0; i < matchFields.size(); i++){
+            bodyBuilder.appendFormalLine("   keys" + i + ".add(values[" + i + "]);");
+         }
+         bodyBuilder.appendFormalLine("}");
+      }
+      bodyBuilder.appendFormalLine(getTypeName(TYPED_QUERY) + "<Object[]> membersQuery = em.createQuery(\"SELECT " 
+            + keyList + ", o FROM " + entityName + " o WHERE " + getUnmergedCondition() + inKeys 
+            + (identifierField != null ? " ORDER BY o." + identifierField.getFieldName() : "") + "\", Object[].class);");
+      if (matchFields.size() == 1){
+         bodyBuilder.appendFormalLine("membersQuery.setParameter(\"keys0\", keys);");
+      } else {
+         for (int i = 0; i < matchFields.size(); i++){
+            bodyBuilder.appendFormalLine("membersQuery.setParameter(\"keys" + i + "\", keys" + i + ");");
+         }
+      }
+      final List<String> memberKey = new ArrayList<String>();
+      for (int i = 0; i < matchFields.size(); i++){
+         memberKey.add("member[" + i + "]");
+      }
+      bodyBuilder.appendFormalLine("for (Object[] member : membersQuery.getResultList()){");
+      bodyBuilder.appendFormalLine("   " + getTypeName(getListType(destination)) + " group = groups.get(" 
+            + (matchFields.size() == 1 ? "member[0]" : getTypeName(ARRAYS) + ".asList(" + StringUtils.join(memberKey, ", ") + ")") + ");");
+      bodyBuilder.appendFormalLine("   if (group != null){");
+      bodyBuilder.appendFormalLine("      group.add((" + entityName + ") member[" + matchFields.size() + "]);");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return new " + getTypeName(getParameterizedType(ARRAY_LIST, getListType(destination))) + "(groups.values());");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(getListType(destination)), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAllInParallelMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAllInParallel");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getListType(getListType(destination)), JavaType.INT_PRIMITIVE);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("groups"), new JavaSymbolName("threads"));
+
+      // Create the method body. The pool only lives for the duration of the call.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (threads < 1){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"Number of threads must be greater than 0\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(EXECUTOR_SERVICE) + " executor = " + getTypeName(EXECUTORS) + ".newFixedThreadPool(threads);");
+      bodyBuilder.appendFormalLine("try {");
+      bodyBuilder.appendFormalLine("   return mergeAllInParallel(groups, executor);");
+      bodyBuilder.appendFormalLine("} finally {");
+      bodyBuilder.appendFormalLine("   executor.shutdown();");
+      bodyBuilder.appendFormalLine("}");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAllInParallelWithExecutorMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAllInParallel");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getListType(getListType(destination)), EXECUTOR_SERVICE);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("groups"), new JavaSymbolName("executor"));
+
+      // Create the method body. Groups are checked to be disjoint, then handed to workers as identifiers only: each 
+      // worker reloads its entities within its own transaction and thus its own thread bound EntityManager.
+      // Chunks are committed independently: once a chunk fails, chunks not started yet are skipped and running ones 
+      // complete. Groups of committed chunks stay merged, the failure is then reported with the number of them.
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      final String id = getFieldValue("source", identifierField);
+      final JavaType resultsType = getListType(destination);
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(SET, idType)) + " ids = new " 
+            + getTypeName(getParameterizedType(HASH_SET, idType)) + "();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(getListType(idType))) + " idGroups = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, getListType(idType))) + "(groups.size());");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getListType(destination)) + " group : groups){");
+      bodyBuilder.appendFormalLine("   if (group.size() < 2){");
+      bodyBuilder.appendFormalLine("      throw new IllegalArgumentException(\"A merge group must hold at least 2 " + entityName + "\");");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   " + getTypeName(getListType(idType)) + " idGroup = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(group.size());");
+      bodyBuilder.appendFormalLine("   for (" + entityName + " source : group){");
+      bodyBuilder.appendFormalLine("      if (!ids.add(" + id + ")){");
+      bodyBuilder.appendFormalLine("         throw new IllegalArgumentException(\"" + entityName + " \" + " + id + " + \" belongs to several merge groups\");");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("      idGroup.add(" + id + ");");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   idGroups.add(idGroup);");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("final " + getTypeName(ATOMIC_BOOLEAN) + " failed = new " + getTypeName(ATOMIC_BOOLEAN) + "();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(getParameterizedType(FUTURE, resultsType))) + " futures = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, getParameterizedType(FUTURE, resultsType))) + "();");
+      bodyBuilder.appendFormalLine("for (int i = 0; i < idGroups.size(); i += " + annotationValues.getChunkSize() + "){");
+      bodyBuilder.appendFormalLine("   final " + getTypeName(getListType(getListType(idType))) + " chunk = idGroups.subList(i, Math.min(i + " 
+            + annotationValues.getChunkSize() + ", idGroups.size()));");
+      bodyBuilder.appendFormalLine("   futures.add(executor.submit(new " + getTypeName(getParameterizedType(CALLABLE, resultsType)) + "() {");
+      bodyBuilder.appendFormalLine("      public " + getTypeName(resultsType) + " call() {");
+      bodyBuilder.appendFormalLine("         if (failed.get()){");
+      bodyBuilder.appendFormalLine("            return null;");
+      bodyBuilder.appendFormalLine("         }");
+      bodyBuilder.appendFormalLine("         try {");
+      bodyBuilder.appendFormalLine("            return mergeGroupsByIds(chunk);");
+      bodyBuilder.appendFormalLine("         } catch (RuntimeException e){");
+      bodyBuilder.appendFormalLine("            failed.set(true);");
+      bodyBuilder.appendFormalLine("            throw e;");
+      bodyBuilder.appendFormalLine("         }");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("   }));");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(resultsType) + " results = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(groups.size());");
+      bodyBuilder.appendFormalLine("Throwable failure = null;");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getParameterizedType(FUTURE, resultsType)) + " future : futures){");
+      bodyBuilder.appendFormalLine("   try {");
+      bodyBuilder.appendFormalLine("      " + getTypeName(resultsType) + " merged = future.get();");
+      bodyBuilder.appendFormalLine("      if (merged != null){");
+      bodyBuilder.appendFormalLine("         results.addAll(merged);");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("   } catch (InterruptedException e){");
+      bodyBuilder.appendFormalLine("      failed.set(true);");
+      bodyBuilder.appendFormalLine("      Thread.currentThread().interrupt();");
+      bodyBuilder.appendFormalLine("      throw new IllegalStateException(\"Interrupted while waiting for merges of " + entityName 
+            + ", running merges may still complete\", e);");
+      bodyBuilder.appendFormalLine("   } catch (" + getTypeName(EXECUTION_EXCEPTION) + " e){");
+      bodyBuilder.appendFormalLine("      if (failure == null){");
+      bodyBuilder.appendFormalLine("         failure = e.getCause();");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("if (failure != null){");
+      bodyBuilder.appendFormalLine("   throw new IllegalStateException(results.size() + \" of \" + groups.size() + \" " + entityName 
+            + " groups have been merged before a failure, other groups have been left unmerged\", failure);");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return results;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            resultsType, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeGroupsByIdsMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeGroupsByIds");
+
+      // Define method parameter types
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      List<JavaType> parameterTypes = Arrays.asList(getListType(getListType(idType)));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("idGroups"));
+
+      // Create the method body. Entities of all the groups are loaded using a single query.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      appendMetricsStart(bodyBuilder);
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " ids = new " + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "();");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getListType(idType)) + " idGroup : idGroups){");
+      bodyBuilder.appendFormalLine("   ids.addAll(idGroup);");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(MAP, idType, destination)) + " entities = new " 
+            + getTypeName(getParameterizedType(HASH_MAP, idType, destination)) + "(ids.size());");
+      bodyBuilder.appendFormalLine("for (" + entityName + " entity : em.createQuery(\"SELECT o FROM " + entityName + " o WHERE o." 
+            + identifierField.getFieldName() + " IN (:ids)\", " + entityName + ".class).setParameter(\"ids\", ids).getResultList()){");
+      bodyBuilder.appendFormalLine("   entities.put(" + getFieldValue("entity", identifierField) + ", entity);");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " results = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(idGroups.size());");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(getListType(destination))) + " sourcesList = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, getListType(destination))) + "(idGroups.size());");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getListType(idType)) + " idGroup : idGroups){");
+      bodyBuilder.appendFormalLine("   " + getTypeName(getListType(destination)) + " sources = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "(idGroup.size());");
+      bodyBuilder.appendFormalLine("   for (" + getTypeName(idType) + " id : idGroup){");
+      bodyBuilder.appendFormalLine("      if (!entities.containsKey(id)){");
+      bodyBuilder.appendFormalLine("         throw new IllegalArgumentException(\"" + entityName + " \" + id + \" does not exist\");");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("      sources.add(entities.get(id));");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   sourcesList.add(sources);");
+      bodyBuilder.appendFormalLine("   results.add(doMerge(sources, em));");
+      bodyBuilder.appendFormalLine("}");
+      appendFlush(bodyBuilder);
+      appendChunkMarking(bodyBuilder, "sourcesList");
+      appendMergesCompleted(bodyBuilder, "results.size()");
+      bodyBuilder.appendFormalLine("return results;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(TRANSACTIONAL));
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeByIdsMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeByIds");
+
+      // Define method parameter types
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      List<JavaType> parameterTypes = Arrays.asList(idType, idType);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("mainId"), new JavaSymbolName("secondId"));
+
+      // Create the method body. Sources are first locked by an update leaving them unchanged, which also checks they 
+      // exist and have not been merged yet (JPQL cannot lock rows without loading entities). The merge result is then 
+      // inserted from its sources by a single HQL INSERT ... SELECT, references being copied as foreign keys, and found 
+      // back by its main and second references: sources being locked until commit, it is the only row referencing 
+      // both of them. Nothing is loaded into the persistence context, the merge result is assigned as a proxy.
+      final String idFieldName = identifierField.getFieldName().getSymbolName();
+      final String sources = " FROM " + entityName + " a, " + entityName + " b WHERE a." + idFieldName + " = :mainId AND b." 
+            + idFieldName + " = :secondId";
+      final String sourcesParameters = ".setParameter(\"mainId\", mainId).setParameter(\"secondId\", secondId)";
+      StringBuilder properties = new StringBuilder();
+      StringBuilder values = new StringBuilder();
+      for (final FieldMetadata field : mergeableFields){
+         properties.append(field.getFieldName()).append(", ");
+         if (field.getAnnotation(MANY_TO_ONE) != null || field.getAnnotation(ONE_TO_ONE) != null){
+            // The id special property of HQL reads foreign keys without joining referenced entities.
+            values.append("COALESCE(a.").append(field.getFieldName()).append(".id, b.").append(field.getFieldName()).append(".id), ");
+         } else {
+            values.append(getDatabaseMergeExpression(field)).append(", ");
+         }
+      }
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (mainId == null || secondId == null || mainId.equals(secondId)){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"Two distinct " + entityName + " identifiers are required for merging\");");
+      bodyBuilder.appendFormalLine("}");
+      appendMetricsStart(bodyBuilder);
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " ids = " + getTypeName(ARRAYS) + ".asList(mainId, secondId);");
+      bodyBuilder.appendFormalLine("if (em.createQuery(\"UPDATE " + entityName + " o SET o.mergeResult = NULL WHERE o." + idFieldName 
+            + " IN (:ids) AND o.mergeResult IS NULL\").setParameter(\"ids\", ids).executeUpdate() != ids.size()){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"" + entityName + " \" + mainId + \" or \" + secondId 
+            + \" does not exist or has already been merged\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("em.createQuery(\"INSERT INTO " + entityName + " (" + properties + "mergeMainReference, mergeSecondReference) SELECT " 
+            + values + "a, b" + sources + "\")" + sourcesParameters + ".executeUpdate();");
+      bodyBuilder.appendFormalLine(getTypeName(idType) + " mergeId = em.createQuery(\"SELECT o." + idFieldName + " FROM " + entityName 
+            + " o WHERE o.mergeMainReference." + idFieldName + " = :mainId AND o.mergeSecondReference." + idFieldName + " = :secondId\", " 
+            + getTypeName(idType) + ".class)" + sourcesParameters + ".getSingleResult();");
+      bodyBuilder.appendFormalLine(entityName + " merge = em.getReference(" + entityName + ".class, mergeId);");
+      appendLineageUpdates(bodyBuilder);
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine("if (listener != null){");
+         bodyBuilder.appendFormalLine("   listener.phaseCompleted(" + entityName + ".class, " + getTypeName(metricsListener) 
+               + ".MARK, System.nanoTime() - start, rows);");
+         bodyBuilder.appendFormalLine("   listener.mergeCompleted(" + entityName + ".class, 1, System.nanoTime() - start);");
+         bodyBuilder.appendFormalLine("}");
+      }
+      bodyBuilder.appendFormalLine("return mergeId;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            idType, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(TRANSACTIONAL));
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   /**
+    * Create metadata for the field holding the values of mergeable fields as last loaded or flushed, for telling 
+    * which fields of a merged source have changed. The field is transient so that it is not persisted.
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getMergeSnapshotField() {
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE | Modifier.TRANSIENT, 
+            new ArrayList<AnnotationMetadataBuilder>(),
+            new JavaSymbolName("mergeSnapshot"), // Field name
+            new JavaType("java.lang.Object", 1, DataType.TYPE, null, null)); // Field type
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+   
+   private MethodMetadata getSnapshotMergeableFieldsMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("snapshotMergeableFields");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body. References are kept as they are, reading them does not initialize lazy loading proxies.
+      List<String> values = new ArrayList<String>();
+      for (final FieldMetadata field : mergeableFields){
+         values.add(getFieldValue("this", field));
+      }
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("this.mergeSnapshot = new Object[] { " + StringUtils.join(values, ", ") + " };");
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            JavaType.VOID_PRIMITIVE, parameterTypes, parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(POST_LOAD));
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(POST_PERSIST));
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getTrackMergeableChangesMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("trackMergeableChanges");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body. Lifecycle callbacks should not use the EntityManager, so the merge result is only 
+      // refreshed once the transaction has committed. Its identifier is read without initializing its proxy.
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      final JavaType fieldsType = getParameterizedType(SET, JavaType.STRING);
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (this.mergeSnapshot != null && this.mergeResult != null && " 
+            + getTypeName(TRANSACTION_SYNCHRONIZATION_MANAGER) + ".isSynchronizationActive()){");
+      bodyBuilder.appendFormalLine("   final " + getTypeName(fieldsType) + " fields = new " 
+            + getTypeName(getParameterizedType(HASH_SET, JavaType.STRING)) + "();");
+      for (int i = 0; i < mergeableFields.size(); i++){
+         final FieldMetadata field = mergeableFields.get(i);
+         bodyBuilder.appendFormalLine("   if (" + getDifference("this.mergeSnapshot[" + i + "]", getFieldValue("this", field), 
+               field.getFieldType().isPrimitive()) + "){");
+         bodyBuilder.appendFormalLine("      fields.add(\"" + field.getFieldName() + "\");");
+         bodyBuilder.appendFormalLine("   }");
+      }
+      bodyBuilder.appendFormalLine("   if (!fields.isEmpty()){");
+      bodyBuilder.appendFormalLine("      final " + getTypeName(idType) + " resultId = (" + getTypeName(idType) 
+            + ") entityManager().getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(this.mergeResult);");
+      bodyBuilder.appendFormalLine("      " + getTypeName(TRANSACTION_SYNCHRONIZATION_MANAGER) + ".registerSynchronization(new " 
+            + getTypeName(TRANSACTION_SYNCHRONIZATION_ADAPTER) + "() {");
+      bodyBuilder.appendFormalLine("         public void afterCommit() {");
+      bodyBuilder.appendFormalLine("            refreshMergeResult(resultId, fields);");
+      bodyBuilder.appendFormalLine("         }");
+      bodyBuilder.appendFormalLine("      });");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("snapshotMergeableFields();");
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            JavaType.VOID_PRIMITIVE, parameterTypes, parameterNames, bodyBuilder);
+      methodBuilder.addAnnotation(new AnnotationMetadataBuilder(PRE_UPDATE));
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getRefreshMergeResultMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("refreshMergeResult");
+
+      // Define method parameter types
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      List<JavaType> parameterTypes = Arrays.asList(idType, getParameterizedType(SET, JavaType.STRING));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("resultId"), new JavaSymbolName("fields"));
+
+      // Create the method body. Sources are merged again in memory, in their original order as recorded by their 
+      // merge index, then only the changed fields whose merged value differs are written to the merge result, within 
+      // a transaction of their own as the one of the changes has already committed. A merge result that has itself 
+      // been merged is a source of another merge result: the lineage is walked up to the merge root, refreshing each 
+      // merge result for the fields just written to the previous one, as bulk updates do not trigger the tracking 
+      // of changes.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine(getTypeName(ENTITY_MANAGER) + " em = entityManager();");
+      bodyBuilder.appendFormalLine("while (resultId != null){");
+      bodyBuilder.indent();
+      bodyBuilder.appendFormalLine(entityName + " result = em.find(" + entityName + ".class, resultId);");
+      bodyBuilder.appendFormalLine("if (result == null || result.mergeMainReference == null){");
+      bodyBuilder.appendFormalLine("   return;");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(destination)) + " sources = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, destination)) + "();");
+      bodyBuilder.appendFormalLine("sources.add(result.mergeMainReference);");
+      bodyBuilder.appendFormalLine("sources.add(result.mergeSecondReference);");
+      bodyBuilder.appendFormalLine("sources.addAll(em.createQuery(\"SELECT o FROM " + entityName 
+            + " o WHERE o.mergeResult = :result AND o <> :main AND o <> :second ORDER BY o.mergeIndex, o." + identifierField.getFieldName() + "\", " 
+            + entityName + ".class).setParameter(\"result\", result).setParameter(\"main\", result.mergeMainReference)" 
+            + ".setParameter(\"second\", result.mergeSecondReference).getResultList());");
+      bodyBuilder.appendFormalLine(entityName + " merged = new " + entityName + "();");
+      bodyBuilder.appendFormalLine("mergeFields(merged, sources);");
+      bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(MAP, JavaType.STRING, JavaType.OBJECT)) + " values = new " 
+            + getTypeName(getParameterizedType(HASH_MAP, JavaType.STRING, JavaType.OBJECT)) + "();");
+      for (final FieldMetadata field : mergeableFields){
+         final String merged = "merged." + field.getFieldName();
+         final String current = getFieldValue("result", field);
+         bodyBuilder.appendFormalLine("if (fields.contains(\"" + field.getFieldName() + "\") && " 
+               + (field.getFieldType().isPrimitive() ? merged + " != " + current : getDifference(merged, current, false)) + "){");
+         bodyBuilder.appendFormalLine("   values.put(\"" + field.getFieldName() + "\", " + merged + ");");
+         bodyBuilder.appendFormalLine("}");
+      }
+      bodyBuilder.appendFormalLine("if (values.isEmpty()){");
+      bodyBuilder.appendFormalLine("   return;");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("StringBuilder assignments = new StringBuilder();");
+      bodyBuilder.appendFormalLine("for (String field : values.keySet()){");
+      bodyBuilder.appendFormalLine("   assignments.append(\", o.\").append(field).append(\" = :\").append(field);");
+      bodyBuilder.appendFormalLine("}");
+      StringBuilder version = new StringBuilder();
+      appendVersionIncrement(version);
+      bodyBuilder.appendFormalLine(getTypeName(QUERY) + " update = em.createQuery(\"UPDATE " + entityName + " o SET \" + assignments.substring(2) + \"" 
+            + version + " WHERE o." + identifierField.getFieldName() + " = :resultId\").setParameter(\"resultId\", resultId);");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getParameterizedType(MAP_ENTRY, JavaType.STRING, JavaType.OBJECT)) + " value : values.entrySet()){");
+      bodyBuilder.appendFormalLine("   update.setParameter(value.getKey(), value.getValue());");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("update.executeUpdate();");
+      bodyBuilder.appendFormalLine("em.refresh(result);");
+      bodyBuilder.appendFormalLine("fields = values.keySet();");
+      bodyBuilder.appendFormalLine("resultId = result.mergeResult != null ? (" + getTypeName(idType) 
+            + ") em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(result.mergeResult) : null;");
+      bodyBuilder.indentRemove();
+      bodyBuilder.appendFormalLine("}");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.VOID_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+      AnnotationMetadataBuilder transactional = new AnnotationMetadataBuilder(TRANSACTIONAL);
+      transactional.addEnumAttribute("propagation", PROPAGATION, "REQUIRES_NEW");
+      methodBuilder.addAnnotation(transactional);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   /**
+    * Create metadata for the field holding the executor asynchronous merges are submitted to. The field is volatile 
+    * so that an executor set at runtime is seen by all threads without any locking.
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getMergeExecutorField() {
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE | Modifier.STATIC | Modifier.VOLATILE, 
+            new ArrayList<AnnotationMetadataBuilder>(),
+            new JavaSymbolName("mergeExecutor"), // Field name
+            EXECUTOR); // Field type
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+   
+   /**
+    * Create metadata for the field holding the asynchronous merges not completed yet, keyed by the identifiers 
+    * of their sources. Concurrent requests for merging the same sources share the pending merge.
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getPendingMergesField() {
+      final JavaType keyType = getListType(getObjectType(identifierField.getFieldType()));
+      final JavaType valueType = getParameterizedType(FUTURE, destination);
+      
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL, 
+            new ArrayList<AnnotationMetadataBuilder>(),
+            new JavaSymbolName("pendingMerges"), // Field name
+            getParameterizedType(CONCURRENT_MAP, keyType, valueType)); // Field type
+      fieldBuilder.setFieldInitializer("new " + getTypeName(getParameterizedType(CONCURRENT_HASH_MAP, keyType, valueType)) + "()");
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+   
+   private MethodMetadata getMergeExecutorAccessor() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("getMergeExecutor");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return mergeExecutor;");
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            EXECUTOR, parameterTypes, parameterNames, bodyBuilder);
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeExecutorMutator() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("setMergeExecutor");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(EXECUTOR);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("executor"));
+
+      // Create the method body. Any Spring TaskExecutor is an Executor. A null executor disables asynchronous merges.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("mergeExecutor = executor;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.VOID_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAsyncMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAsync");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(destination);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("second"));
+
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return mergeAsync(" + getTypeName(COLLECTIONS) + ".singletonList(second));");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            getParameterizedType(FUTURE, destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAsyncListMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAsync");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getListType(destination));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("others"));
+
+      // Create the method body. Only identifiers are handed to the executor: sources are reloaded by the worker 
+      // within its own transaction, so their pending changes must have been committed before.
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (others == null || others.isEmpty()){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"At least one other " + entityName + " is required for merging\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(getListType(idType)) + " ids = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(others.size() + 1);");
+      bodyBuilder.appendFormalLine("ids.add(" + getFieldValue("this", identifierField) + ");");
+      bodyBuilder.appendFormalLine("for (" + entityName + " other : others){");
+      bodyBuilder.appendFormalLine("   ids.add(" + getFieldValue("other", identifierField) + ");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return submitMerge(ids);");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            getParameterizedType(FUTURE, destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMergeAllAsyncMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("mergeAllAsync");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(getListType(getListType(destination)));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("groups"));
+
+      // Create the method body. Each group is submitted as its own merge, so that it may be shared with 
+      // concurrent requests on the same sources and complete independently of the others.
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      final JavaType futureType = getParameterizedType(FUTURE, destination);
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine(getTypeName(getListType(futureType)) + " futures = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, futureType)) + "(groups.size());");
+      bodyBuilder.appendFormalLine("for (" + getTypeName(getListType(destination)) + " group : groups){");
+      bodyBuilder.appendFormalLine("   if (group.size() < 2){");
+      bodyBuilder.appendFormalLine("      throw new IllegalArgumentException(\"A merge group must hold at least 2 " + entityName + "\");");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   " + getTypeName(getListType(idType)) + " ids = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(group.size());");
+      bodyBuilder.appendFormalLine("   for (" + entityName + " source : group){");
+      bodyBuilder.appendFormalLine("      ids.add(" + getFieldValue("source", identifierField) + ");");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("   futures.add(submitMerge(ids));");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return futures;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            getListType(futureType), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getSubmitMergeMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("submitMerge");
+
+      // Define method parameter types
+      final JavaType idType = getObjectType(identifierField.getFieldType());
+      List<JavaType> parameterTypes = Arrays.asList(getListType(idType));
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("ids"));
+
+      // Create the method body. The merge is registered as pending before being executed, a request finding a merge 
+      // of the same sources already pending gets it instead. It is unregistered once done, whatever its outcome.
+      // Pending merges are keyed by the identifiers in request order, the first one being the main source: a request 
+      // listing the same sources in another order asks for another merge and is not given the pending one. Only the 
+      // first of these merges to run succeeds, the other one failing as its sources have already been merged.
+      final JavaType taskType = getParameterizedType(FUTURE_TASK, destination);
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("if (ids.contains(null)){");
+      bodyBuilder.appendFormalLine("   throw new IllegalArgumentException(\"" + entityName + " must be persisted before being merged asynchronously\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine(getTypeName(EXECUTOR) + " executor = mergeExecutor;");
+      bodyBuilder.appendFormalLine("if (executor == null){");
+      bodyBuilder.appendFormalLine("   throw new IllegalStateException(\"No executor has been set for asynchronous merges of " + entityName + "\");");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("final " + getTypeName(getListType(idType)) + " sources = new " 
+            + getTypeName(getParameterizedType(ARRAY_LIST, idType)) + "(ids);");
+      bodyBuilder.appendFormalLine("final " + getTypeName(taskType) + " task = new " + getTypeName(taskType) + "(new " 
+            + getTypeName(getParameterizedType(CALLABLE, destination)) + "() {");
+      bodyBuilder.appendFormalLine("   public " + entityName + " call() {");
+      bodyBuilder.appendFormalLine("      return mergeGroupsByIds(" + getTypeName(COLLECTIONS) + ".singletonList(sources)).get(0);");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("});");
+      bodyBuilder.appendFormalLine(getTypeName(getParameterizedType(FUTURE, destination)) + " pending = pendingMerges.putIfAbsent(sources, task);");
+      bodyBuilder.appendFormalLine("if (pending != null){");
+      bodyBuilder.appendFormalLine("   return pending;");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("try {");
+      bodyBuilder.appendFormalLine("   executor.execute(new Runnable() {");
+      bodyBuilder.appendFormalLine("      public void run() {");
+      bodyBuilder.appendFormalLine("         try {");
+      bodyBuilder.appendFormalLine("            task.run();");
+      bodyBuilder.appendFormalLine("         } finally {");
+      bodyBuilder.appendFormalLine("            pendingMerges.remove(sources, task);");
+      bodyBuilder.appendFormalLine("         }");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("   });");
+      bodyBuilder.appendFormalLine("} catch (RuntimeException e){");
+      bodyBuilder.appendFormalLine("   pendingMerges.remove(sources, task);");
+      bodyBuilder.appendFormalLine("   throw e;");
+      bodyBuilder.appendFormalLine("}");
+      bodyBuilder.appendFormalLine("return task;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PRIVATE | Modifier.STATIC, methodName, 
+            getParameterizedType(FUTURE, destination), AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getWasMergedMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("wasMerged");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body. Only checking the field does not initialize the referenced lazy loading proxy.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      if (linkEntity != null){
+         appendLinkExists(bodyBuilder, "sourceId");
+      } else {
+         bodyBuilder.appendFormalLine("return (this.mergeResult != null);");
+      }
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            new JavaType(boolean.class), parameterTypes, parameterNames, bodyBuilder);
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getIsMergeResultMethod() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("isMergeResult");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body. Only checking the field does not initialize the referenced lazy loading proxy.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      if (linkEntity != null){
+         appendLinkExists(bodyBuilder, "resultId");
+      } else {
+         bodyBuilder.appendFormalLine("return (this.mergeMainReference != null);");
+      }
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC, methodName, 
+            new JavaType(boolean.class), parameterTypes, parameterNames, bodyBuilder);
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+
+   /**
+    * Append the code finding the latest source, that is the one having the highest version (or the last one 
+    * if entity has no version).
+    * @param bodyBuilder The builder of mergeFields() body
+    */
+   private void appendLatestSource(InvocableMemberBodyBuilder bodyBuilder) {
+      if (versionField == null){
+         bodyBuilder.appendFormalLine(entityName + " latest = sources.get(sources.size() - 1);");
+         return;
+      }
+      final String sourceVersion = getFieldValue("source", versionField);
+      final String latestVersion = getFieldValue("latest", versionField);
+      bodyBuilder.appendFormalLine(entityName + " latest = sources.get(0);");
+      bodyBuilder.appendFormalLine("for (" + entityName + " source : sources){");
+      if (versionField.getFieldType().isPrimitive()){
+         bodyBuilder.appendFormalLine("   if (" + sourceVersion + " > " + latestVersion + "){");
+      } else {
+         bodyBuilder.appendFormalLine("   if (" + sourceVersion + " != null && (" + latestVersion + " == null || " 
+               + sourceVersion + " > " + latestVersion + ")){");
+      }
+      bodyBuilder.appendFormalLine("      latest = source;");
+      bodyBuilder.appendFormalLine("   }");
+      bodyBuilder.appendFormalLine("}");
+   }
+   
+   /**
+    * Append the code merging the value of field from current source (i being its index) into merge.
+    * @param bodyBuilder The builder of mergeFields() body
+    * @param field The field to merge
+    */
+   private void appendFieldMerge(InvocableMemberBodyBuilder bodyBuilder, FieldMetadata field) {
+      final MergeStrategy strategy = getStrategy(field);
+      final JavaType type = field.getFieldType();
+      final boolean primitive = type.isPrimitive();
+      final String value = getFieldValue("source", field);
+      final String merged = "merge." + field.getFieldName();
+      final String fieldDescription = "Field '" + field.getFieldName() + "' of " + entityName;
+      
+      switch (strategy){
+         case FIRST_NON_NULL:
+         case LATEST:
+            if (primitive){
+               // Primitive values are never null, latest value has already been assigned.
+               if (strategy == MergeStrategy.FIRST_NON_NULL){
+                  bodyBuilder.appendFormalLine("   if (i == 0){");
+                  bodyBuilder.appendFormalLine("      " + merged + " = " + value + ";");
+                  bodyBuilder.appendFormalLine("   }");
+               }
+            } else {
+               bodyBuilder.appendFormalLine("   if (" + merged + " == null){");
+               bodyBuilder.appendFormalLine("      " + merged + " = " + value + ";");
+               bodyBuilder.appendFormalLine("   }");
+            }
+            break;
+         case LONGEST:
+            Validate.isTrue(JavaType.STRING.equals(type), fieldDescription + " should be a String for LONGEST strategy");
+            bodyBuilder.appendFormalLine("   if (" + value + " != null && (" + merged + " == null || " + value + ".length() > " 
+                  + merged + ".length())){");
+            bodyBuilder.appendFormalLine("      " + merged + " = " + value + ";");
+            bodyBuilder.appendFormalLine("   }");
+            break;
+         case MAX:
+         case MIN:
+            Validate.isTrue(!JavaType.BOOLEAN_PRIMITIVE.equals(type), fieldDescription + " cannot be a boolean for " + strategy + " strategy");
+            final String operator = strategy == MergeStrategy.MAX ? ">" : "<";
+            if (primitive){
+               bodyBuilder.appendFormalLine("   if (i == 0 || " + value + " " + operator + " " + merged + "){");
+            } else {
+               bodyBuilder.appendFormalLine("   if (" + value + " != null && (" + merged + " == null || " + value + ".compareTo(" 
+                     + merged + ") " + operator + " 0)){");
+            }
+            bodyBuilder.appendFormalLine("      " + merged + " = " + value + ";");
+            bodyBuilder.appendFormalLine("   }");
+            break;
+         case SUM:
+            Validate.isTrue(isSummable(type), fieldDescription + " should be numeric for SUM strategy");
+            if (primitive){
+               bodyBuilder.appendFormalLine("   if (i == 0){");
+               bodyBuilder.appendFormalLine("      " + merged + " = " + value + ";");
+               bodyBuilder.appendFormalLine("   } else {");
+               bodyBuilder.appendFormalLine("      " + merged + " += " + value + ";");
+               bodyBuilder.appendFormalLine("   }");
+            } else {
+               final String sum = BIG_DECIMAL.equals(type) || BIG_INTEGER.equals(type) ? merged + ".add(" + value + ")" 
+                     : merged + " + " + value;
+               bodyBuilder.appendFormalLine("   if (" + value + " != null){");
+               bodyBuilder.appendFormalLine("      " + merged + " = " + merged + " == null ? " + value + " : " + sum + ";");
+               bodyBuilder.appendFormalLine("   }");
+            }
+            break;
+         case CUSTOM:
+            final String function = getMergeFunctionName(field) + ".merge(" + merged + ", " + value + ")";
+            if (primitive){
+               bodyBuilder.appendFormalLine("   " + merged + " = i == 0 ? " + value + " : " + function + ";");
+            } else {
+               bodyBuilder.appendFormalLine("   if (" + value + " != null){");
+               bodyBuilder.appendFormalLine("      " + merged + " = " + merged + " == null ? " + value + " : " + function + ";");
+               bodyBuilder.appendFormalLine("   }");
+            }
+            break;
+      }
+   }
+   
+   /**
+    * Append the code adding the elements of a collection field of current source to the collection of merge.
+    * Entity elements are deduplicated using their identifier, other elements using equals().
+    * @param bodyBuilder The builder of mergeFields() body
+    * @param field The collection field to merge
+    */
+   private void appendCollectionUnion(InvocableMemberBodyBuilder bodyBuilder, FieldMetadata field) {
+      final JavaType elementType = field.getFieldType().getParameters().isEmpty() ? JavaType.OBJECT 
+            : field.getFieldType().getParameters().get(0);
+      final String value = getFieldValue("source", field);
+      final String merged = "merge." + field.getFieldName();
+      final JavaSymbolName elementIdAccessor = elementIdAccessors.get(field.getFieldName());
+      
+      bodyBuilder.appendFormalLine("   if (" + value + " != null){");
+      bodyBuilder.appendFormalLine("      if (" + merged + " == null){");
+      bodyBuilder.appendFormalLine("         " + merged + " = new " + getTypeName(getCollectionImplementation(field.getFieldType())) + "();");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("      for (" + getTypeName(elementType) + " element : " + value + "){");
+      if (elementIdAccessor != null){
+         bodyBuilder.appendFormalLine("         if (element." + elementIdAccessor + "() == null || " + field.getFieldName() + "Ids.add(element." 
+               + elementIdAccessor + "())){");
+      } else {
+         bodyBuilder.appendFormalLine("         if (!" + merged + ".contains(element)){");
+      }
+      bodyBuilder.appendFormalLine("            " + merged + ".add(element);");
+      bodyBuilder.appendFormalLine("         }");
+      bodyBuilder.appendFormalLine("      }");
+      bodyBuilder.appendFormalLine("   }");
+   }
+   
+   /**
+    * Build the bulk update moving the children of sources to merge for a collection mapped by its children.
+    * @param field The collection field mapped by children
+    * @param sourcesClause The clause selecting the parent of children among sources
+    * @return The JPQL update statement
+    */
+   private String getReparentingUpdate(FieldMetadata field, String sourcesClause) {
+      final JavaType childType = field.getFieldType().getParameters().get(0);
+      final String mappedBy = collectionMappedBy.get(field.getFieldName());
+      StringBuilder update = new StringBuilder("UPDATE " + childType.getSimpleTypeName() + " c SET c." + mappedBy + " = :merge WHERE c." 
+            + mappedBy + sourcesClause);
+      if (childType.equals(destination)){
+         // Merge result may itself be a child of a source, it should not become its own parent.
+         update.append(" AND c <> :merge");
+      }
+      return update.toString();
+   }
+   
+   /** @return the collection fields whose elements are merged by union, that is many-to-many and element collections */
+   private List<FieldMetadata> getUnionCollectionFields() {
+      List<FieldMetadata> fields = new ArrayList<FieldMetadata>();
+      for (FieldMetadata field : collectionFields){
+         if (!collectionMappedBy.containsKey(field.getFieldName())){
+            fields.add(field);
+         }
+      }
+      return fields;
+   }
+   
+   /** @return the concrete type to instantiate for holding a collection of collectionType */
+   private JavaType getCollectionImplementation(JavaType collectionType) {
+      final String name = collectionType.getFullyQualifiedTypeName();
+      if ("java.util.Set".equals(name)){
+         return new JavaType(HASH_SET.getFullyQualifiedTypeName(), 0, DataType.TYPE, null, collectionType.getParameters());
+      } else if ("java.util.SortedSet".equals(name)){
+         return new JavaType("java.util.TreeSet", 0, DataType.TYPE, null, collectionType.getParameters());
+      } else if ("java.util.List".equals(name) || "java.util.Collection".equals(name)){
+         return new JavaType(ARRAY_LIST.getFullyQualifiedTypeName(), 0, DataType.TYPE, null, collectionType.getParameters());
+      }
+      return collectionType;
+   }
+   
+   /**
+    * Create metadata for the static field holding the merge function of a field using the CUSTOM strategy.
+    * @param field The field using CUSTOM strategy
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getMergeFunctionField(FieldMetadata field) {
+      final JavaType function = fieldFunctions.get(field.getFieldName());
+      Validate.isTrue(function != null && !"java.lang.Void".equals(function.getFullyQualifiedTypeName()), 
+            "Field '" + field.getFieldName() + "' of " + entityName + " should specify a function for CUSTOM strategy");
+      
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL, 
+            new ArrayList<AnnotationMetadataBuilder>(),
+            new JavaSymbolName(getMergeFunctionName(field)), // Field name
+            function); // Field type
+      fieldBuilder.setFieldInitializer("new " + getTypeName(function) + "()");
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+   
+   /**
+    * Create metadata for the field holding the metrics listener merges are reported to. The field is volatile 
+    * so that a listener registered at runtime is seen by all threads without any locking.
+    * @return a FieldMetadata object
+    */
+   private FieldMetadata getMetricsListenerField() {
+      // Using the FieldMetadataBuilder to create the field definition. 
+      final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(getId(), // Metadata ID provided by supertype
+            Modifier.PRIVATE | Modifier.STATIC | Modifier.VOLATILE, 
+            new ArrayList<AnnotationMetadataBuilder>(),
+            new JavaSymbolName("mergeMetricsListener"), // Field name
+            metricsListener); // Field type
+
+      return fieldBuilder.build(); // Build and return a FieldMetadata instance
+   }
+   
+   private MethodMetadata getMetricsListenerAccessor() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("getMergeMetricsListener");
+      
+      // Check if a method with the same signature already exists in the target type
+      MethodMetadata method = methodExists(methodName, new ArrayList<AnnotatedJavaType>());
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter types (none in this case)
+      List<AnnotatedJavaType> parameterTypes = new ArrayList<AnnotatedJavaType>();
+      
+      // Define method parameter names (none in this case)
+      List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+      
+      // Create the method body
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("return mergeMetricsListener;");
+      
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            metricsListener, parameterTypes, parameterNames, bodyBuilder);
+      
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   private MethodMetadata getMetricsListenerMutator() {
+      // Specify the desired method name
+      JavaSymbolName methodName = new JavaSymbolName("setMergeMetricsListener");
+
+      // Define method parameter types
+      List<JavaType> parameterTypes = Arrays.asList(metricsListener);
+      
+      // Check if a method with the same signature already exists in the target type
+      final MethodMetadata method = methodExists(methodName, AnnotatedJavaType.convertFromJavaTypes(parameterTypes));
+      if (method != null) {
+         return method;
+      }
+      
+      // Define method parameter names
+      List<JavaSymbolName> parameterNames = Arrays.asList(new JavaSymbolName("listener"));
+
+      // Create the method body. A null listener disables reporting.
+      InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+      bodyBuilder.appendFormalLine("mergeMetricsListener = listener;");
+
+      // Use the MethodMetadataBuilder for easy creation of MethodMetadata
+      MethodMetadataBuilder methodBuilder = new MethodMetadataBuilder(getId(), Modifier.PUBLIC | Modifier.STATIC, methodName, 
+            JavaType.VOID_PRIMITIVE, AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, bodyBuilder);
+
+      return methodBuilder.build(); // Build and return a MethodMetadata instance
+   }
+   
+   /**
+    * Append the code reading the metrics listener and the start time of a merge method, if metrics are enabled. 
+    * The listener is read once so that a method reports to a single listener, the clock is only read when 
+    * a listener is registered.
+    * @param bodyBuilder The body of the method
+    */
+   private void appendMetricsStart(InvocableMemberBodyBuilder bodyBuilder) {
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine(getTypeName(metricsListener) + " listener = mergeMetricsListener;");
+         bodyBuilder.appendFormalLine("long start = listener != null ? System.nanoTime() : 0L;");
+      }
+   }
+   
+   /**
+    * Append the flush of the persistence context, reporting it as a phase if metrics are enabled.
+    * @param bodyBuilder The body of the method, starting with {@link #appendMetricsStart(InvocableMemberBodyBuilder)}
+    */
+   private void appendFlush(InvocableMemberBodyBuilder bodyBuilder) {
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine("if (listener != null){");
+         bodyBuilder.appendFormalLine("   long flushStart = System.nanoTime();");
+         bodyBuilder.appendFormalLine("   em.flush();");
+         bodyBuilder.appendFormalLine("   listener.phaseCompleted(" + entityName + ".class, " + getTypeName(metricsListener) 
+               + ".FLUSH, System.nanoTime() - flushStart, 0);");
+         bodyBuilder.appendFormalLine("} else {");
+         bodyBuilder.appendFormalLine("   em.flush();");
+         bodyBuilder.appendFormalLine("}");
+      } else {
+         bodyBuilder.appendFormalLine("em.flush();");
+      }
+   }
+   
+   /**
+    * Append the marking of the sources of the merges of a chunk, results having been flushed. When lineage is stored 
+    * in columns, the persistence context is cleared before marking: sources are then detached and updated in memory 
+    * by markMerged() instead of being refreshed one by one.
+    * @param bodyBuilder The body of the method, which must be transactional
+    * @param sourcesList The name of the variable holding the list of sources of each result
+    */
+   private void appendChunkMarking(InvocableMemberBodyBuilder bodyBuilder, String sourcesList) {
+      final boolean clearFirst = linkEntity == null && identifierField != null;
+      if (clearFirst){
+         appendClear(bodyBuilder);
+      }
+      bodyBuilder.appendFormalLine("for (int i = 0; i < results.size(); i++){");
+      bodyBuilder.appendFormalLine("   markMerged(results.get(i), " + sourcesList + ".get(i), em);");
+      bodyBuilder.appendFormalLine("}");
+      if (!clearFirst){
+         appendClear(bodyBuilder);
+      }
+   }
+   
+   /**
+    * Append the clearing of the persistence context of a chunk. The persistence context is only cleared 
+    * when the transaction has been started by the chunk method itself: when joining a caller transaction, entities 
+    * of the caller stay managed and memory is released when that transaction ends.
+    * @param bodyBuilder The body of the method, which must be transactional
+    */
+   private void appendClear(InvocableMemberBodyBuilder bodyBuilder) {
+      if (linkEntity != null){
+         // Links inserted while marking sources have to be written before being detached.
+         appendFlush(bodyBuilder);
+      }
+      bodyBuilder.appendFormalLine("if (" + getTypeName(TRANSACTION_ASPECT_SUPPORT) + ".currentTransactionStatus().isNewTransaction()){");
+      bodyBuilder.appendFormalLine("   em.clear();");
+      bodyBuilder.appendFormalLine("}");
+   }
+   
+   /**
+    * Append the report of completed merges, if metrics are enabled.
+    * @param bodyBuilder The body of the method, starting with {@link #appendMetricsStart(InvocableMemberBodyBuilder)}
+    * @param merges The expression giving the number of merge results
+    */
+   private void appendMergesCompleted(InvocableMemberBodyBuilder bodyBuilder, String merges) {
+      if (metricsListener != null){
+         bodyBuilder.appendFormalLine("if (listener != null){");
+         bodyBuilder.appendFormalLine("   listener.mergeCompleted(" + entityName + ".class, " + merges + ", System.nanoTime() - start);");
+         bodyBuilder.appendFormalLine("}");
+      }
+   }
+   
+   /** @return the name of the static field holding the merge function of field */
+   private String getMergeFunctionName(FieldMetadata field) {
+      return field.getFieldName() + "MergeFunction";
+   }
+   
+   /** @return the merge strategy of field, FIRST_NON_NULL if none has been specified */
+   private MergeStrategy getStrategy(FieldMetadata field) {
+      final MergeStrategy strategy = fieldStrategies.get(field.getFieldName());
+      return strategy != null ? strategy : MergeStrategy.FIRST_NON_NULL;
+   }
+   
+   /** @return the mergeable fields using strategy */
+   private List<FieldMetadata> getFieldsWithStrategy(MergeStrategy strategy) {
+      List<FieldMetadata> fields = new ArrayList<FieldMetadata>();
+      for (FieldMetadata field : mergeableFields){
+         if (getStrategy(field) == strategy){
+            fields.add(field);
+         }
+      }
+      return fields;
+   }
+   
+   /** @return true if values of type can be summed */
+   private boolean isSummable(JavaType type) {
+      if (type.isPrimitive()){
+         return !JavaType.BOOLEAN_PRIMITIVE.equals(type) && !JavaType.CHAR_PRIMITIVE.equals(type);
+      }
+      return JavaType.INT_OBJECT.equals(type) || JavaType.LONG_OBJECT.equals(type) || JavaType.FLOAT_OBJECT.equals(type) 
+            || JavaType.DOUBLE_OBJECT.equals(type) || BIG_DECIMAL.equals(type) || BIG_INTEGER.equals(type);
+   }
+
+   /**
+    * Find a method declared by the governor. Package visibility for benchmarking lookups.
+    * @param methodName The name of the method
+    * @param paramTypes The types of its parameters
+    * @return The declared method, or null if governor does not declare it
+    */
+   MethodMetadata methodExists(JavaSymbolName methodName, List<AnnotatedJavaType> paramTypes) {
+      // We do not scan the superclass, as the caller is expected to know we'll only scan the current class
+      final List<MethodMetadata> methods = declaredMethods.get(methodName);
+      if (methods != null){
+         for (MethodMetadata method : methods) {
+            if (method.getParameterTypes().equals(paramTypes)) {
+               // Found a method of the expected name and parameters
+               return method;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Get the expression reading a field value on a source entity. Accessors are preferred as sources may be
+    * lazy loading proxies whose fields are never initialized.
+    * @param source The name of the variable holding source entity
+    * @param field The field to read
+    * @return The expression to use within generated code
+    */
+   private String getFieldValue(String source, FieldMetadata field) {
+      JavaSymbolName accessor = fieldAccessors.get(field.getFieldName());
+      if (accessor != null){
+         return source + "." + accessor + "()";
+      }
+      return source + "." + field.getFieldName();
+   }
+   
+   /**
+    * Get the mergeable fields specified by the matchOn attribute of the annotation.
+    * @return The fields used for duplicates detection
+    */
+   private List<FieldMetadata> getMatchFields() {
+      List<FieldMetadata> fields = new ArrayList<FieldMetadata>();
+      for (String name : annotationValues.getMatchOn()){
+         FieldMetadata matchField = null;
+         for (FieldMetadata field : mergeableFields){
+            if (field.getFieldName().getSymbolName().equals(name)){
+               matchField = field;
+            }
+         }
+         Validate.notNull(matchField, "Field '" + name + "' of @RooMergeable matchOn is not a mergeable field of " + entityName);
+         fields.add(matchField);
+      }
+      return fields;
+   }
+   
+   /**
+    * Get the mergeable fields that can be used for ordering entities, that is fields that are not references
+    * to other entities.
+    * @return The orderable fields
+    */
+   private List<FieldMetadata> getOrderableFields() {
+      List<FieldMetadata> orderableFields = new ArrayList<FieldMetadata>();
+      for (FieldMetadata field : mergeableFields){
+         if (field.getAnnotation(MANY_TO_ONE) == null && field.getAnnotation(ONE_TO_ONE) == null){
+            orderableFields.add(field);
+         }
+      }
+      return orderableFields;
+   }
+   
+   /** @return the wrapper type of type if it is primitive, type otherwise */
+   private JavaType getObjectType(JavaType type) {
+      return type.isPrimitive() ? new JavaType(type.getFullyQualifiedTypeName()) : type;
+   }
+   
+   /** @return the type of a pair of entities to merge, the key being the main one */
+   private JavaType getPairType() {
+      return getParameterizedType(MAP_ENTRY, destination, destination);
+   }
+   
+   /** @return the type of a list of pairs of entities to merge */
+   private JavaType getPairsType() {
+      return getListType(getPairType());
+   }
+   
+   /** @return the type of a list of elementType */
+   private JavaType getListType(JavaType elementType) {
+      return getParameterizedType(LIST, elementType);
+   }
+   
+   /**
+    * Build a parameterized version of a generic type.
+    * @param type The generic type
+    * @param parameters The type parameters
+    * @return The parameterized type
+    */
+   private JavaType getParameterizedType(JavaType type, JavaType... parameters) {
+      return new JavaType(type.getFullyQualifiedTypeName(), 0, DataType.TYPE, null, Arrays.asList(parameters));
+   }
+   
+   /**
+    * Get the name to use for a type within generated code, registering the required import.
+    * @param type The type to reference
+    * @return The simple or fully qualified name of type
+    */
+   private String getTypeName(JavaType type) {
+      return type.getNameIncludingTypeParameters(false, builder.getImportRegistrationResolver());
    }
 
    // Typically, no changes are required beyond this point
@@ -1,20 +1,43 @@
 package com.github.lbroudoux.roo.addon.mergeable;
 
+import static org.springframework.roo.model.JpaJavaType.MANY_TO_MANY;
+import static org.springframework.roo.model.JpaJavaType.ONE_TO_MANY;
+
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import org.apache.commons.lang3.Validate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.component.ComponentContext;
+import org.springframework.roo.addon.plural.PluralMetadata;
 import org.springframework.roo.classpath.PhysicalTypeIdentifier;
 import org.springframework.roo.classpath.PhysicalTypeMetadata;
+import org.springframework.roo.classpath.details.BeanInfoUtils;
+import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetails;
 import org.springframework.roo.classpath.details.FieldMetadata;
+import org.springframework.roo.classpath.details.MemberFindingUtils;
+import org.springframework.roo.classpath.details.MethodMetadata;
+import org.springframework.roo.classpath.details.annotations.AnnotatedJavaType;
+import org.springframework.roo.classpath.details.annotations.AnnotationAttributeValue;
+import org.springframework.roo.classpath.details.annotations.AnnotationMetadata;
 import org.springframework.roo.classpath.itd.AbstractItdMetadataProvider;
 import org.springframework.roo.classpath.itd.ItdTypeDetailsProvidingMetadataItem;
 import org.springframework.roo.classpath.scanner.MemberDetails;
+import org.springframework.roo.metadata.MetadataNotificationListener;
+import org.springframework.roo.model.EnumDetails;
+import org.springframework.roo.model.JavaSymbolName;
 import org.springframework.roo.model.JavaType;
+import org.springframework.roo.project.Dependency;
 import org.springframework.roo.project.LogicalPath;
+import org.springframework.roo.project.ProjectMetadata;
 
 /**
  * Provides {@link MergeableMetadata}. This type is called by Roo to retrieve the metadata for this add-on.
@@ -27,6 +50,31 @@ import org.springframework.roo.project.LogicalPath;
 @Service
 public final class MergeableMetadataProvider extends AbstractItdMetadataProvider {
 
+    private static final JavaType ROO_MERGEABLE_FIELD = new JavaType(RooMergeableField.class.getName());
+    private static final JavaType ELEMENT_COLLECTION = new JavaType("javax.persistence.ElementCollection");
+    private static final String MERGE_FUNCTION = "MergeFunction";
+    
+    private final Map<String, CachedMetadata> metadataCache = new HashMap<String, CachedMetadata>();
+    
+    /** 
+     * Evict cached metadata when its governor type is removed, and every cached metadata when the project changes as
+     * its dependencies tell the JPA provider. Changes of the types a metadata depends on are detected when the
+     * metadata is requested instead, as notification listeners are only notified after the metadata providers.
+     */
+    private final MetadataNotificationListener cacheEvictionListener = new MetadataNotificationListener() {
+       public void notify(String upstreamDependency, String downstreamDependency) {
+          if (ProjectMetadata.isValid(upstreamDependency)){
+             metadataCache.clear();
+          } else if (PhysicalTypeIdentifier.isValid(upstreamDependency)){
+             final String metadataIdentificationString = createLocalIdentifier(PhysicalTypeIdentifier.getJavaType(upstreamDependency), 
+                   PhysicalTypeIdentifier.getPath(upstreamDependency));
+             if (metadataCache.containsKey(metadataIdentificationString) && metadataService.get(upstreamDependency) == null){
+                metadataCache.remove(metadataIdentificationString);
+             }
+          }
+       }
+    };
+
     /**
      * The activate method for this OSGi component, this will be called by the OSGi container upon bundle activation 
      * (result of the 'addon install' command) 
@@ -35,6 +83,8 @@ public final class MergeableMetadataProvider extends AbstractItdMetadataProvider
      */
     protected void activate(ComponentContext context) {
         metadataDependencyRegistry.registerDependency(PhysicalTypeIdentifier.getMetadataIdentiferType(), getProvidesType());
+        metadataDependencyRegistry.registerDependency(PluralMetadata.getMetadataIdentiferType(), getProvidesType());
+        metadataDependencyRegistry.addNotificationListener(cacheEvictionListener);
         addMetadataTrigger(new JavaType(RooMergeable.class.getName()));
     }
     
@@ -46,32 +96,123 @@ public final class MergeableMetadataProvider extends AbstractItdMetadataProvider
      */
     protected void deactivate(ComponentContext context) {
         metadataDependencyRegistry.deregisterDependency(PhysicalTypeIdentifier.getMetadataIdentiferType(), getProvidesType());
+        metadataDependencyRegistry.deregisterDependency(PluralMetadata.getMetadataIdentiferType(), getProvidesType());
+        metadataDependencyRegistry.removeNotificationListener(cacheEvictionListener);
         removeMetadataTrigger(new JavaType(RooMergeable.class.getName()));    
+        metadataCache.clear();
     }
     
     /**
      * Return an instance of the Metadata offered by this add-on
      */
     protected ItdTypeDetailsProvidingMetadataItem getMetadata(String metadataIdentificationString, JavaType aspectName, PhysicalTypeMetadata governorPhysicalTypeMetadata, String itdFilename) {
+       // Reuse previous metadata if neither the governor nor the types it has been built from have changed since.
+       final ClassOrInterfaceTypeDetails governorTypeDetails = governorPhysicalTypeMetadata.getMemberHoldingTypeDetails();
+       final CachedMetadata cached = metadataCache.get(metadataIdentificationString);
+       if (cached != null && cached.stateHash == getStateHash(governorTypeDetails, cached.dependencyTypes)){
+          // Dependencies of the metadata are removed by Roo before asking for it again.
+          for (final String upstreamDependency : cached.upstreamDependencies){
+             metadataDependencyRegistry.registerDependency(upstreamDependency, metadataIdentificationString);
+          }
+          cached.metadata = new MergeableMetadata(cached.metadata, governorPhysicalTypeMetadata);
+          return cached.metadata;
+       }
+       
        // Retrieve javaType, id and version fields.
-       final JavaType javaType = governorPhysicalTypeMetadata.getMemberHoldingTypeDetails().getName();
+       final JavaType javaType = governorTypeDetails.getName();
        final List<FieldMetadata> idFields = persistenceMemberLocator.getIdentifierFields(javaType);
-       List<String> idFieldsName = new ArrayList<String>();
+       Set<String> idFieldsName = new HashSet<String>();
        for (FieldMetadata idField : idFields){
            idFieldsName.add(idField.getFieldName().toString());
        }
        final FieldMetadata versionField = persistenceMemberLocator.getVersionField(javaType);
-      
+       final FieldMetadata identifierField = idFields != null && idFields.size() == 1 ? idFields.get(0) : null;
+       
+       // Retrieve the plural used for naming finders.
+       final LogicalPath path = PhysicalTypeIdentifier.getPath(governorPhysicalTypeMetadata.getId());
+       final PluralMetadata pluralMetadata = (PluralMetadata) metadataService.get(PluralMetadata.createIdentifier(javaType, path));
+       if (pluralMetadata == null){
+          return null;
+       }
+       
+       // Retrieve the values of the trigger annotation.
+       final MergeableAnnotationValues annotationValues = new MergeableAnnotationValues(governorPhysicalTypeMetadata);
+       final boolean hibernateProvider = isHibernateProvider();
+       
        MemberDetails memberDetails = getMemberDetails(governorPhysicalTypeMetadata);
        List<FieldMetadata> mergeableFields = new ArrayList<FieldMetadata>();
+       Map<JavaSymbolName, JavaSymbolName> fieldAccessors = new HashMap<JavaSymbolName, JavaSymbolName>();
+       Map<JavaSymbolName, MergeStrategy> fieldStrategies = new HashMap<JavaSymbolName, MergeStrategy>();
+       Map<JavaSymbolName, JavaType> fieldFunctions = new HashMap<JavaSymbolName, JavaType>();
+       List<FieldMetadata> collectionFields = new ArrayList<FieldMetadata>();
+       Map<JavaSymbolName, String> collectionMappedBy = new HashMap<JavaSymbolName, String>();
+       Map<JavaSymbolName, JavaSymbolName> elementIdAccessors = new HashMap<JavaSymbolName, JavaSymbolName>();
+       // Other types read while analysing fields, for checking them when the metadata is requested again.
+       List<JavaType> dependencyTypes = new ArrayList<JavaType>();
+       List<String> upstreamDependencies = new ArrayList<String>();
+      
+       // Keep track of identifier accessor for reading identifiers on lazy loaded sources.
+       if (identifierField != null){
+          final MethodMetadata identifierAccessor = persistenceMemberLocator.getIdentifierAccessor(javaType);
+          if (identifierAccessor != null){
+             fieldAccessors.put(identifierField.getFieldName(), identifierAccessor.getMethodName());
+          }
+       }
+       // Version may be declared into another ITD so that it should be accessed through accessor and mutator.
+       JavaSymbolName versionMutator = null;
+       if (versionField != null){
+          final MethodMetadata versionAccessor = persistenceMemberLocator.getVersionAccessor(javaType);
+          final JavaSymbolName mutatorName = BeanInfoUtils.getMutatorMethodName(versionField);
+          if (versionAccessor != null && MemberFindingUtils.getMethod(memberDetails, mutatorName, 
+                Arrays.asList(versionField.getFieldType())) != null){
+             fieldAccessors.put(versionField.getFieldName(), versionAccessor.getMethodName());
+             versionMutator = mutatorName;
+          }
+       }
       
        for (final FieldMetadata field : memberDetails.getFields()){ 
           if (Modifier.isStatic(field.getModifier()) ||
                Modifier.isTransient(field.getModifier()) ||
-                   field.getFieldType().isCommonCollectionType() || 
-                       field.getFieldType().isArray()){ 
+                   field.getFieldType().isArray()){ 
              continue; 
           }
+          if (field.getFieldType().isCommonCollectionType()){
+             // Inverse side of a many-to-many cannot be merged as the join table is owned by the other side.
+             if (getMappedBy(field, MANY_TO_MANY) != null){
+                continue;
+             }
+             // Children of a one-to-many are re-parented, many-to-many and element collections are merged by union 
+             // of their elements. Children of an owning one-to-many cannot be shared by merge result and sources.
+             final String mappedBy = getMappedBy(field, ONE_TO_MANY);
+             final boolean union = MemberFindingUtils.getAnnotationOfType(field.getAnnotations(), MANY_TO_MANY) != null 
+                   || MemberFindingUtils.getAnnotationOfType(field.getAnnotations(), ELEMENT_COLLECTION) != null;
+             if (mappedBy == null && !union){
+                Validate.isTrue(MemberFindingUtils.getAnnotationOfType(field.getAnnotations(), ONE_TO_MANY) == null, 
+                      "Collection field '" + field.getFieldName() + "' of " + javaType.getSimpleTypeName() 
+                      + " cannot be merged as an owning one-to-many, its children should be mapped by their parent (mappedBy) "
+                      + "or associated as a many-to-many");
+                continue;
+             }
+             collectionFields.add(field);
+             trackAccessor(memberDetails, field, fieldAccessors);
+             
+             if (mappedBy != null){
+                collectionMappedBy.put(field.getFieldName(), mappedBy);
+             } else if (!field.getFieldType().getParameters().isEmpty()){
+                final JavaType elementType = field.getFieldType().getParameters().get(0);
+                final ClassOrInterfaceTypeDetails elementDetails = typeLocationService.getTypeDetails(elementType);
+                if (elementDetails != null){
+                   dependencyTypes.add(elementType);
+                   upstreamDependencies.add(elementDetails.getDeclaredByMetadataId());
+                   metadataDependencyRegistry.registerDependency(elementDetails.getDeclaredByMetadataId(), metadataIdentificationString);
+                }
+                final MethodMetadata elementIdAccessor = persistenceMemberLocator.getIdentifierAccessor(elementType);
+                if (elementIdAccessor != null && !elementIdAccessor.getReturnType().isPrimitive()){
+                   elementIdAccessors.put(field.getFieldName(), elementIdAccessor.getMethodName());
+                }
+             }
+             continue;
+          }
           if (idFields != null && idFieldsName.contains(field.getFieldName().toString())){
              continue;
           }
@@ -83,11 +224,245 @@ public final class MergeableMetadataProvider extends AbstractItdMetadataProvider
           if (!"mergeMainReference".equals(field.getFieldName().toString())
                 && !"mergeSecondReference".equals(field.getFieldName().toString())){ 
               mergeableFields.add(field);
+              
+              trackAccessor(memberDetails, field, fieldAccessors);
+              
+              // Keep track of merge strategy and function (if any) specified on field.
+              final AnnotationMetadata fieldAnnotation = MemberFindingUtils.getAnnotationOfType(field.getAnnotations(), ROO_MERGEABLE_FIELD);
+              if (fieldAnnotation != null){
+                 final AnnotationAttributeValue<?> strategy = fieldAnnotation.getAttribute(new JavaSymbolName("strategy"));
+                 if (strategy != null){
+                    final EnumDetails strategyDetails = (EnumDetails) strategy.getValue();
+                    fieldStrategies.put(field.getFieldName(), MergeStrategy.valueOf(strategyDetails.getField().getSymbolName()));
+                 }
+                 final AnnotationAttributeValue<?> function = fieldAnnotation.getAttribute(new JavaSymbolName("function"));
+                 if (function != null){
+                    final JavaType functionType = (JavaType) function.getValue();
+                    validateMergeFunction(metadataIdentificationString, field, functionType, dependencyTypes, upstreamDependencies);
+                    fieldFunctions.put(field.getFieldName(), functionType);
+                 }
+              }
           }
        }
        
        // Pass dependencies required by the metadata in through its constructor
-       return new MergeableMetadata(metadataIdentificationString, aspectName, governorPhysicalTypeMetadata, mergeableFields);
+       final MergeableMetadata metadata = new MergeableMetadata(metadataIdentificationString, aspectName, governorPhysicalTypeMetadata, 
+             identifierField, versionField, versionMutator, mergeableFields, fieldAccessors, fieldStrategies, fieldFunctions, 
+             collectionFields, collectionMappedBy, elementIdAccessors, annotationValues, pluralMetadata.getPlural(), hibernateProvider);
+       metadataCache.put(metadataIdentificationString, new CachedMetadata(getStateHash(governorTypeDetails, dependencyTypes), 
+             dependencyTypes, upstreamDependencies, metadata));
+       return metadata;
+    }
+    
+    /**
+     * Compute a hash of the state metadata is built from: the declared state of the governor and its superclasses
+     * (annotations, fields and methods, from which other ITDs introducing identifier, version and accessors are built
+     * too), and the declared state of other types read while analysing fields.
+     * @param governorTypeDetails The governor type
+     * @param dependencyTypes The other types read while analysing fields
+     * @return The hash of the state
+     */
+    private long getStateHash(ClassOrInterfaceTypeDetails governorTypeDetails, List<JavaType> dependencyTypes) {
+       final StateHash hash = new StateHash();
+       appendTypeHierarchy(hash, governorTypeDetails);
+       for (final JavaType dependencyType : dependencyTypes){
+          appendTypeHierarchy(hash, typeLocationService.getTypeDetails(dependencyType));
+       }
+       return hash.value;
+    }
+    
+    /**
+     * Append the declared state of a type and its superclasses to a hash.
+     * @param hash The hash to append to
+     * @param typeDetails The type, may be null if the type has been removed
+     */
+    private void appendTypeHierarchy(StateHash hash, ClassOrInterfaceTypeDetails typeDetails) {
+       for (ClassOrInterfaceTypeDetails type = typeDetails; type != null; type = type.getSuperclass()){
+          hash.add(type.getName().getFullyQualifiedTypeName()).add(type.getModifier()).add(type.getPhysicalTypeCategory());
+          appendAnnotations(hash, type.getAnnotations());
+          for (final JavaType extendsType : type.getExtendsTypes()){
+             hash.add(extendsType.getNameIncludingTypeParameters());
+          }
+          for (final JavaType implementsType : type.getImplementsTypes()){
+             hash.add(implementsType.getNameIncludingTypeParameters());
+          }
+          for (final FieldMetadata field : type.getDeclaredFields()){
+             hash.add("F").add(field.getModifier()).add(field.getFieldType().getNameIncludingTypeParameters()).add(field.getFieldName());
+             appendAnnotations(hash, field.getAnnotations());
+          }
+          for (final MethodMetadata method : type.getDeclaredMethods()){
+             hash.add("M").add(method.getModifier()).add(method.getReturnType().getNameIncludingTypeParameters()).add(method.getMethodName());
+             for (final JavaType parameterType : AnnotatedJavaType.convertFromAnnotatedJavaTypes(method.getParameterTypes())){
+                hash.add(parameterType.getNameIncludingTypeParameters());
+             }
+             appendAnnotations(hash, method.getAnnotations());
+          }
+       }
+       hash.add("|");
+    }
+    
+    /**
+     * Append annotations to a hash: their types, then their attributes sorted by name.
+     * @param hash The hash to append to
+     * @param annotations The annotations to append
+     */
+    private void appendAnnotations(StateHash hash, List<AnnotationMetadata> annotations) {
+       for (final AnnotationMetadata annotation : annotations){
+          hash.add("@").add(annotation.getAnnotationType().getFullyQualifiedTypeName());
+          for (final String attributeName : new TreeSet<String>(getNames(annotation.getAttributeNames()))){
+             hash.add(attributeName);
+             appendAttributeValue(hash, annotation.getAttribute(new JavaSymbolName(attributeName)).getValue());
+          }
+          hash.add(")");
+       }
+    }
+    
+    /**
+     * Append the value of an annotation attribute to a hash. Arrays and nested annotations are appended element by
+     * element, enums and classes by their fully qualified names.
+     * @param hash The hash to append to
+     * @param value The attribute value
+     */
+    private void appendAttributeValue(StateHash hash, Object value) {
+       if (value instanceof List){
+          hash.add("{");
+          for (final Object element : (List<?>) value){
+             appendAttributeValue(hash, ((AnnotationAttributeValue<?>) element).getValue());
+          }
+          hash.add("}");
+       } else if (value instanceof AnnotationMetadata){
+          appendAnnotations(hash, Arrays.asList((AnnotationMetadata) value));
+       } else if (value instanceof EnumDetails){
+          hash.add(((EnumDetails) value).getType().getFullyQualifiedTypeName()).add(((EnumDetails) value).getField().getSymbolName());
+       } else if (value instanceof JavaType){
+          hash.add(((JavaType) value).getNameIncludingTypeParameters());
+       } else {
+          hash.add(value);
+       }
+    }
+    
+    /**
+     * Get the names of annotation attributes as Strings.
+     * @param attributeNames The attribute names
+     * @return The names as Strings
+     */
+    private List<String> getNames(List<JavaSymbolName> attributeNames) {
+       final List<String> names = new ArrayList<String>(attributeNames.size());
+       for (final JavaSymbolName attributeName : attributeNames){
+          names.add(attributeName.getSymbolName());
+       }
+       return names;
+    }
+    
+    /** A 64 bits FNV-1a hash, fed value by value. */
+    private static class StateHash {
+       private static final long PRIME = 0x100000001b3L;
+       private long value = 0xcbf29ce484222325L;
+       
+       private StateHash add(Object token) {
+          final String string = String.valueOf(token);
+          for (int i = 0; i < string.length(); i++){
+             value = (value ^ string.charAt(i)) * PRIME;
+          }
+          // Separate values so that the end of one cannot be taken for the start of the next one.
+          value = (value ^ 0xffff) * PRIME;
+          return this;
+       }
+    }
+    
+    /** 
+     * Metadata built for a governor together with the hash of the state it has been built from, the other types
+     * read while building it and the metadata it depends on.
+     */
+    private static class CachedMetadata {
+       private final long stateHash;
+       private final List<JavaType> dependencyTypes;
+       private final List<String> upstreamDependencies;
+       private MergeableMetadata metadata;
+       
+       private CachedMetadata(long stateHash, List<JavaType> dependencyTypes, List<String> upstreamDependencies, 
+             MergeableMetadata metadata) {
+          this.stateHash = stateHash;
+          this.dependencyTypes = dependencyTypes;
+          this.upstreamDependencies = upstreamDependencies;
+          this.metadata = metadata;
+       }
+    }
+    
+    /**
+     * Check that the function of a field implements the MergeFunction interface generated by the 'mergeable function' 
+     * command, parameterized with the type of the field. The governor is registered as depending on the function so
+     * that it gets checked again when the function changes.
+     * @param metadataIdentificationString The identifier of the metadata being built
+     * @param field The field using the function
+     * @param functionType The type of the function
+     * @param dependencyTypes The other types read while analysing fields, to add the function to
+     * @param upstreamDependencies The metadata the governor depends on, to add the function to
+     */
+    private void validateMergeFunction(String metadataIdentificationString, FieldMetadata field, JavaType functionType, 
+          List<JavaType> dependencyTypes, List<String> upstreamDependencies) {
+       if ("java.lang.Void".equals(functionType.getFullyQualifiedTypeName())){
+          return;
+       }
+       final ClassOrInterfaceTypeDetails functionDetails = typeLocationService.getTypeDetails(functionType);
+       Validate.notNull(functionDetails, "Function '" + functionType.getFullyQualifiedTypeName() + "' of field '" 
+             + field.getFieldName() + "' is not a type of the project");
+       dependencyTypes.add(functionType);
+       upstreamDependencies.add(functionDetails.getDeclaredByMetadataId());
+       metadataDependencyRegistry.registerDependency(functionDetails.getDeclaredByMetadataId(), metadataIdentificationString);
+       for (final JavaType implementsType : functionDetails.getImplementsTypes()){
+          // Primitive types are named after their wrapper type, as the function parameter.
+          if (MERGE_FUNCTION.equals(implementsType.getSimpleTypeName()) && implementsType.getParameters().size() == 1 
+                && implementsType.getParameters().get(0).getFullyQualifiedTypeName().equals(field.getFieldType().getFullyQualifiedTypeName())){
+             return;
+          }
+       }
+       throw new IllegalArgumentException("Function '" + functionType.getFullyQualifiedTypeName() + "' of field '" + field.getFieldName() 
+             + "' should implement " + MERGE_FUNCTION + "<" + field.getFieldType().getSimpleTypeName() + ">, as generated by the 'mergeable function' command");
+    }
+    
+    /**
+     * Keep track of the accessor of a field (if any) for reading values on lazy loaded sources.
+     * @param memberDetails Details of the governor members
+     * @param field The field to find accessor for
+     * @param fieldAccessors The map of accessors by field name to fill
+     */
+    private void trackAccessor(MemberDetails memberDetails, FieldMetadata field, Map<JavaSymbolName, JavaSymbolName> fieldAccessors) {
+       final JavaSymbolName accessorName = BeanInfoUtils.getAccessorMethodName(field);
+       if (MemberFindingUtils.getMethod(memberDetails, accessorName, new ArrayList<JavaType>()) != null){
+          fieldAccessors.put(field.getFieldName(), accessorName);
+       }
+    }
+    
+    /**
+     * Get the mappedBy attribute of an association annotation of field.
+     * @param field The association field
+     * @param associationType The type of association annotation (OneToMany or ManyToMany)
+     * @return The mappedBy value or null if field has no such annotation or association is not mapped by the other side
+     */
+    private String getMappedBy(FieldMetadata field, JavaType associationType) {
+       final AnnotationMetadata association = MemberFindingUtils.getAnnotationOfType(field.getAnnotations(), associationType);
+       if (association == null){
+          return null;
+       }
+       final AnnotationAttributeValue<?> mappedBy = association.getAttribute(new JavaSymbolName("mappedBy"));
+       return mappedBy != null ? (String) mappedBy.getValue() : null;
+    }
+    
+    /**
+     * Tell if Hibernate is the JPA provider of the focused module, in which case index hints can be generated.
+     * @return true if an Hibernate dependency is found, false otherwise
+     */
+    private boolean isHibernateProvider() {
+       if (!projectOperations.isFocusedProjectAvailable()){
+          return false;
+       }
+       for (final Dependency dependency : projectOperations.getFocusedModule().getDependencies()){
+          if ("org.hibernate".equals(dependency.getGroupId()) && dependency.getArtifactId().startsWith("hibernate-")){
+             return true;
+          }
+       }
+       return false;
     }
     
     /**
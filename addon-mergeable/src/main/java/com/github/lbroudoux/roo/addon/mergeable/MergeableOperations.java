@@ -1,5 +1,6 @@
 package com.github.lbroudoux.roo.addon.mergeable;
 
+import org.springframework.roo.model.JavaPackage;
 import org.springframework.roo.model.JavaType;
 
 /**
@@ -26,8 +27,53 @@ public interface MergeableOperations {
      */
     void annotateAll();
     
+    /**
+     * Annotate all Java types with the trigger of this add-on, restricting to types of a package and/or to types
+     * whose simple name matches a pattern
+     * 
+     * @param javaPackage the package (including sub-packages) of types to annotate, all packages if null
+     * @param pattern the regular expression type simple names must match, all names if null
+     */
+    void annotateAll(JavaPackage javaPackage, String pattern);
+    
     /**
      * Setup all add-on artifacts (dependencies in this case)
      */
     void setup();
+    
+    /**
+     * Generate the merge metrics listener interface and its in-memory implementation, then enable metrics 
+     * on all the types holding the trigger of this add-on
+     * 
+     * @param javaPackage the package of generated types, the 'merge' sub-package of the top level package if null
+     */
+    void setupMetrics(JavaPackage javaPackage);
+    
+    /**
+     * Generate the merge function interface, to be implemented by the functions of fields merged using the CUSTOM 
+     * strategy
+     * 
+     * @param javaPackage the package of the generated interface, the 'merge' sub-package of the top level package if null
+     */
+    void setupFunction(JavaPackage javaPackage);
+    
+    /**
+     * Generate the merge link entity, then store lineage of mergeable types into its table instead of columns of 
+     * their own tables
+     * 
+     * @param javaPackage the package of the link entity, the 'merge' sub-package of the top level package if null
+     * @param type the mergeable type to update, all mergeable types if null
+     */
+    void setupLinkStorage(JavaPackage javaPackage, JavaType type);
+    
+    /**
+     * Install Spring Batch, then generate a restartable job merging the candidate groups of mergeable types: a reader 
+     * of candidate groups, a processor and a writer merging them by chunks, within partitions
+     * 
+     * @param javaPackage the package of generated types, the 'merge' sub-package of the top level package if null
+     * @param type the mergeable type to generate a job for, all mergeable types matching on some fields if null
+     * @param chunkSize the number of groups merged within a transaction
+     * @param partitions the number of partitions of candidate groups merged concurrently
+     */
+    void setupJob(JavaPackage javaPackage, JavaType type, int chunkSize, int partitions);
 }
\ No newline at end of file
@@ -1,7 +1,15 @@
 package com.github.lbroudoux.roo.addon.mergeable;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.felix.scr.annotations.Component;
@@ -9,11 +17,22 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.springframework.roo.classpath.TypeLocationService;
 import org.springframework.roo.classpath.TypeManagementService;
+import org.springframework.roo.classpath.TypeParsingService;
+import org.springframework.roo.classpath.details.FieldMetadata;
 import org.springframework.roo.classpath.details.MemberFindingUtils;
 import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetails;
 import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetailsBuilder;
+import org.springframework.roo.classpath.details.annotations.AnnotationAttributeValue;
+import org.springframework.roo.classpath.details.annotations.AnnotationMetadata;
 import org.springframework.roo.classpath.details.annotations.AnnotationMetadataBuilder;
+import org.springframework.roo.classpath.details.annotations.ClassAttributeValue;
+import org.springframework.roo.classpath.details.annotations.StringAttributeValue;
+import org.springframework.roo.classpath.persistence.PersistenceMemberLocator;
+import org.springframework.roo.model.JavaPackage;
+import org.springframework.roo.model.JavaSymbolName;
 import org.springframework.roo.model.JavaType;
+import org.springframework.roo.process.manager.FileManager;
+import org.springframework.roo.project.Path;
 import org.springframework.roo.project.ProjectOperations;
 import org.springframework.roo.project.Dependency;
 import org.springframework.roo.project.DependencyScope;
@@ -31,6 +50,16 @@ import org.w3c.dom.Element;
 @Service
 public class MergeableOperationsImpl implements MergeableOperations {
     
+    // Create JavaType instances for the add-ons trigger annotation and the annotation of types to process
+    private static final JavaType ROO_MERGEABLE = new JavaType(RooMergeable.class.getName());
+    private static final JavaType ROO_JAVA_BEAN = new JavaType("org.springframework.roo.addon.javabean.RooJavaBean");
+    private static final String METRICS_LISTENER = "MergeMetricsListener";
+    private static final String IN_MEMORY_METRICS_LISTENER = "InMemoryMergeMetricsListener";
+    private static final String MERGE_FUNCTION = "MergeFunction";
+    private static final String MERGE_LINK = "MergeLink";
+    private static final String MERGE_PARTITIONER = "MergePartitioner";
+    private static final String[] MERGE_JOB_TYPES = { "MergeCandidateReader", "MergeProcessor", "MergeWriter" };
+    
     /**
      * Use ProjectOperations to install new dependencies, plugins, properties, etc into the project configuration
      */
@@ -45,6 +74,21 @@ public class MergeableOperationsImpl implements MergeableOperations {
      * Use TypeManagementService to change types
      */
     @Reference private TypeManagementService typeManagementService;
+    
+    /**
+     * Use TypeParsingService to get the source of changed types
+     */
+    @Reference private TypeParsingService typeParsingService;
+    
+    /**
+     * Use FileManager to write the types generated from templates and the types annotated at once
+     */
+    @Reference private FileManager fileManager;
+    
+    /**
+     * Use PersistenceMemberLocator to find identifiers of mergeable types
+     */
+    @Reference private PersistenceMemberLocator persistenceMemberLocator;
 
     /** {@inheritDoc} */
     public boolean isCommandAvailable() {
@@ -59,33 +103,88 @@ public class MergeableOperationsImpl implements MergeableOperations {
 
         // Obtain ClassOrInterfaceTypeDetails for this java type
         ClassOrInterfaceTypeDetails existing = typeLocationService.getTypeDetails(javaType);
-
+        
         // Test if the annotation already exists on the target type
-        if (existing != null && MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), new JavaType(RooMergeable.class.getName())) == null) {
-            ClassOrInterfaceTypeDetailsBuilder classOrInterfaceTypeDetailsBuilder = new ClassOrInterfaceTypeDetailsBuilder(existing);
-            
-            // Create JavaType instance for the add-ons trigger annotation
-            JavaType rooRooMergeable = new JavaType(RooMergeable.class.getName());
-
-            // Create Annotation metadata
-            AnnotationMetadataBuilder annotationBuilder = new AnnotationMetadataBuilder(rooRooMergeable);
-            
-            // Add annotation to target type
-            classOrInterfaceTypeDetailsBuilder.addAnnotation(annotationBuilder.build());
-            
+        if (existing != null && !isAnnotated(existing)) {
             // Save changes to disk
-            typeManagementService.createOrUpdateTypeOnDisk(classOrInterfaceTypeDetailsBuilder.build());
+            typeManagementService.createOrUpdateTypeOnDisk(getAnnotatedType(existing));
         }
     }
 
     /** {@inheritDoc} */
     public void annotateAll() {
-        // Use the TypeLocationService to scan project for all types with a specific annotation
-        for (JavaType type: typeLocationService.findTypesWithAnnotation(new JavaType("org.springframework.roo.addon.javabean.RooJavaBean"))) {
-            annotateType(type);
+        annotateAll(null, null);
+    }
+    
+    /** {@inheritDoc} */
+    public void annotateAll(JavaPackage javaPackage, String pattern) {
+        Validate.isTrue(pattern == null || isRegularExpression(pattern), "Pattern '" + pattern + "' is not a valid regular expression");
+        final Pattern namePattern = pattern != null ? Pattern.compile(pattern) : null;
+        
+        // Use the TypeLocationService to scan project for all types with a specific annotation. Details come along 
+        // with the scan so that no further lookup is needed, changes are all computed before being written.
+        List<ClassOrInterfaceTypeDetails> annotatedTypes = new ArrayList<ClassOrInterfaceTypeDetails>();
+        for (ClassOrInterfaceTypeDetails existing : typeLocationService.findClassesOrInterfaceDetailsWithAnnotation(ROO_JAVA_BEAN)) {
+            final JavaType type = existing.getName();
+            if (javaPackage != null && !type.getPackage().getFullyQualifiedPackageName().equals(javaPackage.getFullyQualifiedPackageName())
+                    && !type.getPackage().getFullyQualifiedPackageName().startsWith(javaPackage.getFullyQualifiedPackageName() + ".")) {
+                continue;
+            }
+            if (namePattern != null && !namePattern.matcher(type.getSimpleTypeName()).matches()) {
+                continue;
+            }
+            if (!isAnnotated(existing)) {
+                annotatedTypes.add(getAnnotatedType(existing));
+            }
+        }
+        
+        // Save all changes to disk in a single pass. Writes are left to the file manager, which commits them all 
+        // at the end of the command so that file and metadata notifications are processed once for all the types.
+        for (ClassOrInterfaceTypeDetails annotatedType : annotatedTypes) {
+            final String fileIdentifier = typeLocationService.getPhysicalTypeCanonicalPath(annotatedType.getDeclaredByMetadataId());
+            fileManager.createOrUpdateTextFileIfRequired(fileIdentifier, typeParsingService.getCompilationUnitContents(annotatedType), false);
         }
     }
     
+    /**
+     * Tell if a pattern is a valid regular expression
+     * @param pattern The pattern to check
+     * @return true if pattern compiles, false otherwise
+     */
+    private boolean isRegularExpression(String pattern) {
+        try {
+            Pattern.compile(pattern);
+            return true;
+        } catch (PatternSyntaxException pse) {
+            return false;
+        }
+    }
+    
+    /**
+     * Tell if a type already holds the trigger of this add-on
+     * @param existing Details of the type
+     * @return true if type is annotated, false otherwise
+     */
+    private boolean isAnnotated(ClassOrInterfaceTypeDetails existing) {
+        return MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), ROO_MERGEABLE) != null;
+    }
+    
+    /**
+     * Build the details of a type once annotated with the trigger of this add-on
+     * @param existing Details of the type to annotate
+     * @return The details of annotated type
+     */
+    private ClassOrInterfaceTypeDetails getAnnotatedType(ClassOrInterfaceTypeDetails existing) {
+        ClassOrInterfaceTypeDetailsBuilder classOrInterfaceTypeDetailsBuilder = new ClassOrInterfaceTypeDetailsBuilder(existing);
+
+        // Create Annotation metadata
+        AnnotationMetadataBuilder annotationBuilder = new AnnotationMetadataBuilder(ROO_MERGEABLE);
+        
+        // Add annotation to target type
+        classOrInterfaceTypeDetailsBuilder.addAnnotation(annotationBuilder.build());
+        return classOrInterfaceTypeDetailsBuilder.build();
+    }
+    
     /** {@inheritDoc} */
     public void setup() {
         List<Dependency> dependencies = new ArrayList<Dependency>();
@@ -96,12 +195,219 @@ public class MergeableOperationsImpl implements MergeableOperations {
         // Install the dependency on the add-on jar (
         dependencies.add(new Dependency("com.github.lbroudoux.roo.addon", "com.github.lbroudoux.roo.addon.mergeable", "0.1.0.BUILD", DependencyType.JAR, DependencyScope.PROVIDED));
         
+        // Add all new dependencies to pom.xml
+        projectOperations.addDependencies("", dependencies);
+    }
+    
+    /** {@inheritDoc} */
+    public void setupMetrics(JavaPackage javaPackage) {
+        final String packageName = javaPackage != null ? javaPackage.getFullyQualifiedPackageName() 
+                : projectOperations.getFocusedTopLevelPackage().getFullyQualifiedPackageName() + ".merge";
+        
+        // Generate the listener types from templates, keeping the ones that already exist as they may have been customized.
+        createTypeFromTemplate(packageName, METRICS_LISTENER);
+        createTypeFromTemplate(packageName, IN_MEMORY_METRICS_LISTENER);
+        
+        // Report merges of all mergeable types to the listener.
+        List<AnnotationAttributeValue<?>> attributes = new ArrayList<AnnotationAttributeValue<?>>();
+        attributes.add(new ClassAttributeValue(new JavaSymbolName("metricsListener"), new JavaType(packageName + "." + METRICS_LISTENER)));
+        updateMergeableTypes(null, attributes);
+    }
+    
+    /** {@inheritDoc} */
+    public void setupFunction(JavaPackage javaPackage) {
+        final String packageName = javaPackage != null ? javaPackage.getFullyQualifiedPackageName() 
+                : projectOperations.getFocusedTopLevelPackage().getFullyQualifiedPackageName() + ".merge";
+        
+        // Generate the function interface from template, keeping it if it already exists.
+        createTypeFromTemplate(packageName, MERGE_FUNCTION);
+    }
+    
+    /** {@inheritDoc} */
+    public void setupLinkStorage(JavaPackage javaPackage, JavaType javaType) {
+        final String packageName = javaPackage != null ? javaPackage.getFullyQualifiedPackageName() 
+                : projectOperations.getFocusedTopLevelPackage().getFullyQualifiedPackageName() + ".merge";
+        
+        // Generate the link entity from template, keeping it if it already exists as it may have been customized.
+        createTypeFromTemplate(packageName, MERGE_LINK);
+        
+        // Store lineage of mergeable types into the link table.
+        List<AnnotationAttributeValue<?>> attributes = new ArrayList<AnnotationAttributeValue<?>>();
+        attributes.add(new StringAttributeValue(new JavaSymbolName("storage"), "LINK_TABLE"));
+        attributes.add(new ClassAttributeValue(new JavaSymbolName("linkEntity"), new JavaType(packageName + "." + MERGE_LINK)));
+        updateMergeableTypes(javaType, attributes);
+    }
+    
+    /** {@inheritDoc} */
+    public void setupJob(JavaPackage javaPackage, JavaType javaType, int chunkSize, int partitions) {
+        Validate.isTrue(chunkSize > 0, "Chunk size must be greater than 0");
+        Validate.isTrue(partitions > 0, "Number of partitions must be greater than 0");
+        final String packageName = javaPackage != null ? javaPackage.getFullyQualifiedPackageName() 
+                : projectOperations.getFocusedTopLevelPackage().getFullyQualifiedPackageName() + ".merge";
+        
+        // Jobs need candidate groups, hence matching fields, and merge them by identifiers.
+        List<ClassOrInterfaceTypeDetails> mergeableTypes = new ArrayList<ClassOrInterfaceTypeDetails>();
+        if (javaType != null) {
+            ClassOrInterfaceTypeDetails existing = typeLocationService.getTypeDetails(javaType);
+            Validate.isTrue(existing != null && isAnnotated(existing), "Type '" + javaType + "' is not a mergeable type");
+            Validate.isTrue(hasJob(existing), "Type '" + javaType + "' must match on some fields and have a single identifier");
+            mergeableTypes.add(existing);
+        } else {
+            for (ClassOrInterfaceTypeDetails existing : typeLocationService.findClassesOrInterfaceDetailsWithAnnotation(ROO_MERGEABLE)) {
+                if (hasJob(existing)) {
+                    mergeableTypes.add(existing);
+                }
+            }
+        }
+        
         // Install dependencies defined in external XML file
+        List<Dependency> dependencies = new ArrayList<Dependency>();
         for (Element dependencyElement : XmlUtils.findElements("/configuration/batch/dependencies/dependency", XmlUtils.getConfiguration(getClass()))) {
             dependencies.add(new Dependency(dependencyElement));
         }
-
-        // Add all new dependencies to pom.xml
         projectOperations.addDependencies("", dependencies);
+        
+        // Generate the shared job infrastructure, then the job of each type. Existing files are kept as they may have 
+        // been customized.
+        Map<String, String> replacements = new HashMap<String, String>();
+        replacements.put("__PACKAGE__", packageName);
+        createTypeFromTemplate(packageName, MERGE_PARTITIONER);
+        createFileFromTemplate(getSpringConfigIdentifier("batch"), "applicationContext-batch-template.xml", replacements);
+        for (ClassOrInterfaceTypeDetails existing : mergeableTypes) {
+            final JavaType type = existing.getName();
+            final JavaType idType = persistenceMemberLocator.getIdentifierFields(type).get(0).getFieldType();
+            final String simpleTypeName = type.getSimpleTypeName();
+            replacements.put("__ENTITY__", simpleTypeName);
+            replacements.put("__ENTITY_TYPE__", type.getFullyQualifiedTypeName());
+            replacements.put("__BEAN__", Character.toLowerCase(simpleTypeName.charAt(0)) + simpleTypeName.substring(1));
+            replacements.put("__ID_TYPE__", "java.lang".equals(idType.getPackage().getFullyQualifiedPackageName()) 
+                    ? idType.getSimpleTypeName() : idType.getFullyQualifiedTypeName());
+            replacements.put("__ID_ACCESSOR__", persistenceMemberLocator.getIdentifierAccessor(type).getMethodName().getSymbolName());
+            replacements.put("__CHUNK_SIZE__", String.valueOf(chunkSize));
+            replacements.put("__PARTITIONS__", String.valueOf(partitions));
+            for (String jobType : MERGE_JOB_TYPES) {
+                createFileFromTemplate(getJavaIdentifier(packageName, simpleTypeName + jobType), jobType + "-template._java", replacements);
+            }
+            createFileFromTemplate(getSpringConfigIdentifier("merge-" + simpleTypeName.toLowerCase()), "applicationContext-merge-template.xml", replacements);
+        }
+    }
+    
+    /**
+     * Tell if a merge job can be generated for a mergeable type
+     * @param existing Details of the mergeable type
+     * @return true if the type matches on some fields and has a single object identifier with an accessor, false otherwise
+     */
+    private boolean hasJob(ClassOrInterfaceTypeDetails existing) {
+        AnnotationMetadata annotation = MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), ROO_MERGEABLE);
+        List<FieldMetadata> identifierFields = persistenceMemberLocator.getIdentifierFields(existing.getName());
+        return annotation.getAttribute(new JavaSymbolName("matchOn")) != null && identifierFields != null && identifierFields.size() == 1 
+                && !identifierFields.get(0).getFieldType().isPrimitive() && persistenceMemberLocator.getIdentifierAccessor(existing.getName()) != null;
+    }
+    
+    /**
+     * Set attributes of the trigger annotation of this add-on on mergeable types
+     * @param javaType The mergeable type to update, all mergeable types if null
+     * @param attributes The attributes to add or replace
+     */
+    private void updateMergeableTypes(JavaType javaType, List<AnnotationAttributeValue<?>> attributes) {
+        List<ClassOrInterfaceTypeDetails> mergeableTypes = new ArrayList<ClassOrInterfaceTypeDetails>();
+        if (javaType != null) {
+            ClassOrInterfaceTypeDetails existing = typeLocationService.getTypeDetails(javaType);
+            Validate.isTrue(existing != null && isAnnotated(existing), "Type '" + javaType + "' is not a mergeable type");
+            mergeableTypes.add(existing);
+        } else {
+            mergeableTypes.addAll(typeLocationService.findClassesOrInterfaceDetailsWithAnnotation(ROO_MERGEABLE));
+        }
+        
+        // Changes are all computed before being written.
+        List<ClassOrInterfaceTypeDetails> updatedTypes = new ArrayList<ClassOrInterfaceTypeDetails>();
+        for (ClassOrInterfaceTypeDetails existing : mergeableTypes) {
+            AnnotationMetadata annotation = MemberFindingUtils.getAnnotationOfType(existing.getAnnotations(), ROO_MERGEABLE);
+            AnnotationMetadataBuilder annotationBuilder = new AnnotationMetadataBuilder(annotation);
+            for (AnnotationAttributeValue<?> attribute : attributes) {
+                annotationBuilder.addAttribute(attribute);
+            }
+            
+            ClassOrInterfaceTypeDetailsBuilder classOrInterfaceTypeDetailsBuilder = new ClassOrInterfaceTypeDetailsBuilder(existing);
+            classOrInterfaceTypeDetailsBuilder.updateTypeAnnotation(annotationBuilder.build());
+            updatedTypes.add(classOrInterfaceTypeDetailsBuilder.build());
+        }
+        for (ClassOrInterfaceTypeDetails updatedType : updatedTypes) {
+            typeManagementService.createOrUpdateTypeOnDisk(updatedType);
+        }
+    }
+    
+    /**
+     * Create a type of the project from a template of this add-on, if it does not exist yet
+     * @param packageName The package of the type
+     * @param simpleTypeName The simple name of the type, also naming the template
+     */
+    private void createTypeFromTemplate(String packageName, String simpleTypeName) {
+        Map<String, String> replacements = new HashMap<String, String>();
+        replacements.put("__PACKAGE__", packageName);
+        createFileFromTemplate(getJavaIdentifier(packageName, simpleTypeName), simpleTypeName + "-template._java", replacements);
+    }
+    
+    /**
+     * Create a file of the project from a template of this add-on, if it does not exist yet
+     * @param fileIdentifier The canonical path of the file
+     * @param templateName The name of the template, relative to this class
+     * @param replacements The values to replace placeholders of the template with
+     */
+    private void createFileFromTemplate(String fileIdentifier, String templateName, Map<String, String> replacements) {
+        if (fileManager.exists(fileIdentifier)) {
+            return;
+        }
+        String content = readTemplate(templateName);
+        for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+            content = content.replace(replacement.getKey(), replacement.getValue());
+        }
+        fileManager.createOrUpdateTextFileIfRequired(fileIdentifier, content, true);
+    }
+    
+    /**
+     * Get the canonical path of a Java source file of the project
+     * @param packageName The package of the type
+     * @param simpleTypeName The simple name of the type
+     * @return The canonical path of the source file
+     */
+    private String getJavaIdentifier(String packageName, String simpleTypeName) {
+        return projectOperations.getPathResolver().getFocusedIdentifier(Path.SRC_MAIN_JAVA, 
+                packageName.replace('.', '/') + "/" + simpleTypeName + ".java");
+    }
+    
+    /**
+     * Get the canonical path of a Spring configuration file of the project, loaded along with the application context
+     * @param suffix The suffix of the file name
+     * @return The canonical path of the configuration file
+     */
+    private String getSpringConfigIdentifier(String suffix) {
+        return projectOperations.getPathResolver().getFocusedIdentifier(Path.SRC_MAIN_RESOURCES, 
+                "META-INF/spring/applicationContext-" + suffix + ".xml");
+    }
+    
+    /**
+     * Read a template bundled with this add-on
+     * @param templateName The name of the template, relative to this class
+     * @return The content of the template
+     */
+    private String readTemplate(String templateName) {
+        final InputStream inputStream = getClass().getResourceAsStream(templateName);
+        Validate.notNull(inputStream, "Template '" + templateName + "' not found");
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            try {
+                StringBuilder content = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    content.append(line).append('\n');
+                }
+                return content.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to read template '" + templateName + "'", ioe);
+        }
     }
 }
\ No newline at end of file
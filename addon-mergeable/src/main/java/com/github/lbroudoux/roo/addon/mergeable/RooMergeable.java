@@ -13,5 +13,54 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.SOURCE)
 public @interface RooMergeable {
-}
 
+   /**
+    * @return the number of pairs merged within a single transaction by the generated mergeAll() method
+    * before the persistence context gets flushed and cleared. The persistence context is only cleared when the 
+    * chunk runs into its own transaction, entities of a calling transaction are never detached (defaults to 50)
+    */
+   int chunkSize() default 50;
+   
+   /**
+    * @return the name of the JPA fetch type used for merge references and merge result, either
+    * "LAZY" or "EAGER" (defaults to "LAZY" so that loading an entity does not load its whole lineage)
+    */
+   String fetch() default "LAZY";
+   
+   /**
+    * @return the names of the fields whose values identify duplicates, the generated findMergeCandidates()
+    * method groups entities having the same values (case and surrounding spaces are ignored for String fields).
+    * Candidates are looked up on LOWER(TRIM(field)) for String fields, which a plain index on the column cannot 
+    * serve: only other fields are matched on their raw column, large tables need an expression index on the 
+    * normalized value for String fields, where the database supports it
+    */
+   String[] matchOn() default {};
+   
+   /**
+    * @return the type of the listener merge phases (fields merging, persist, flush and marking of sources) are 
+    * reported to, as generated by the 'mergeable metrics' command. A static setter is then generated for 
+    * registering the listener, nothing is reported while it is not registered (defaults to no metrics)
+    */
+   Class<?> metricsListener() default Void.class;
+   
+   /**
+    * @return where merge lineage is stored, either "COLUMNS" for main reference, second reference and merge result 
+    * columns on the entity table, or "LINK_TABLE" for rows of the linkEntity table, keeping entity rows narrow 
+    * and allowing any number of sources to be recorded (defaults to "COLUMNS")
+    */
+   String storage() default "COLUMNS";
+   
+   /**
+    * @return the type of the entity holding merge links when storage is "LINK_TABLE", as generated by the 
+    * 'mergeable link' command (defaults to none)
+    */
+   Class<?> linkEntity() default Void.class;
+   
+   /**
+    * @return true for keeping merge results up to date with their sources: once a transaction updating merged 
+    * sources commits, the fields that changed are merged again into the merge result, which is updated for these 
+    * fields only. A merge result that has itself been merged is refreshed up to its merge root. Requires "COLUMNS" 
+    * storage and a single identifier (defaults to false)
+    */
+   boolean live() default false;
+}
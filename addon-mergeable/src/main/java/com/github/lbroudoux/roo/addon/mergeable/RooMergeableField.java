@@ -0,0 +1,28 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Specify how the values of a field of a {@link RooMergeable} entity are merged.
+ * 
+ * @since 1.1.0
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.SOURCE)
+public @interface RooMergeableField {
+
+   /**
+    * @return the strategy used for merging values of this field (defaults to FIRST_NON_NULL)
+    */
+   MergeStrategy strategy() default MergeStrategy.FIRST_NON_NULL;
+   
+   /**
+    * @return the class merging values when strategy is CUSTOM. It should implement the MergeFunction interface 
+    * generated by the 'mergeable function' command, parameterized with the field type (its wrapper type for 
+    * primitive fields), and have a public no-arg constructor.
+    */
+   Class<?> function() default Void.class;
+}
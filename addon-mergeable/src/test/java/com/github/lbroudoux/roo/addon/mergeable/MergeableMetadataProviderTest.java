@@ -0,0 +1,90 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.springframework.roo.classpath.PhysicalTypeMetadata;
+import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetails;
+import org.springframework.roo.classpath.itd.ItdSourceFileComposer;
+import org.springframework.roo.classpath.scanner.MemberDetailsScanner;
+
+import com.github.lbroudoux.roo.addon.mergeable.SyntheticProject.Entity;
+
+public class MergeableMetadataProviderTest {
+   
+   private final SyntheticProject project = new SyntheticProject(2, 12, 7);
+   
+   @Test
+   public void testCacheHitSkipsMemberDetails() {
+      MemberDetailsScanner memberDetailsScanner = project.newMemberDetailsScanner();
+      MergeableMetadataProvider provider = project.newProvider(memberDetailsScanner);
+      Entity entity = project.getEntities().get(0);
+      
+      MergeableMetadata built = project.getMetadata(provider, entity);
+      MergeableMetadata cached = project.getMetadata(provider, entity, entity.reparse());
+      
+      // Members are only scanned for building the metadata, the cached one produces the same ITD.
+      verify(memberDetailsScanner, times(1)).getMemberDetails(anyString(), any(ClassOrInterfaceTypeDetails.class));
+      Assert.assertEquals(getOutput(built), getOutput(cached));
+   }
+   
+   @Test
+   public void testCacheHitIsBoundToCurrentGovernor() {
+      MergeableMetadataProvider provider = project.newProvider();
+      Entity entity = project.getEntities().get(0);
+      project.getMetadata(provider, entity);
+      
+      PhysicalTypeMetadata reparsed = entity.reparse();
+      MergeableMetadata cached = project.getMetadata(provider, entity, reparsed);
+      Assert.assertSame(reparsed.getMemberHoldingTypeDetails(), cached.getMemberHoldingTypeDetails().getGovernor());
+   }
+   
+   @Test
+   public void testChangedGovernorMissesCache() {
+      MemberDetailsScanner memberDetailsScanner = project.newMemberDetailsScanner();
+      MergeableMetadataProvider provider = project.newProvider(memberDetailsScanner);
+      project.getMetadata(provider, project.getEntities().get(0));
+      
+      // Same governor with an additional field.
+      Entity changed = new SyntheticProject(2, 13, 7).getEntities().get(0);
+      project.getMetadata(provider, changed);
+      verify(memberDetailsScanner, times(2)).getMemberDetails(anyString(), any(ClassOrInterfaceTypeDetails.class));
+   }
+   
+   @Test
+   public void testCacheIsKeptPerGovernor() {
+      MemberDetailsScanner memberDetailsScanner = project.newMemberDetailsScanner();
+      MergeableMetadataProvider provider = project.newProvider(memberDetailsScanner);
+      for (Entity entity : project.getEntities()){
+         project.getMetadata(provider, entity);
+      }
+      for (Entity entity : project.getEntities()){
+         project.getMetadata(provider, entity, entity.reparse());
+      }
+      verify(memberDetailsScanner, times(project.getEntities().size())).getMemberDetails(anyString(), any(ClassOrInterfaceTypeDetails.class));
+   }
+   
+   @Test
+   public void testRegeneratedItdIsIdentical() {
+      // Roo only rewrites an ITD whose content differs, building metadata again without any cache must not change it.
+      for (Entity entity : project.getEntities()){
+         String built = getOutput(project.getMetadata(project.newProvider(), entity));
+         String rebuilt = getOutput(project.getMetadata(project.newProvider(), entity, entity.reparse()));
+         Assert.assertEquals(built, rebuilt);
+      }
+   }
+   
+   /**
+    * Get the content of the ITD file of metadata, as written by Roo.
+    * @param metadata The metadata
+    * @return The ITD content
+    */
+   private String getOutput(MergeableMetadata metadata) {
+      return new ItdSourceFileComposer(metadata.getMemberHoldingTypeDetails()).getOutput();
+   }
+}
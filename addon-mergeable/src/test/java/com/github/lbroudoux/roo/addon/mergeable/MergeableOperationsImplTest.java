@@ -0,0 +1,129 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.roo.classpath.PhysicalTypeCategory;
+import org.springframework.roo.classpath.PhysicalTypeIdentifier;
+import org.springframework.roo.classpath.TypeLocationService;
+import org.springframework.roo.classpath.TypeParsingService;
+import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetails;
+import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetailsBuilder;
+import org.springframework.roo.classpath.details.annotations.AnnotationMetadataBuilder;
+import org.springframework.roo.model.JavaPackage;
+import org.springframework.roo.model.JavaType;
+import org.springframework.roo.process.manager.FileManager;
+import org.springframework.roo.project.LogicalPath;
+import org.springframework.roo.project.Path;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MergeableOperationsImplTest {
+
+   private static final JavaType ROO_JAVA_BEAN = new JavaType("org.springframework.roo.addon.javabean.RooJavaBean");
+
+   @Mock
+   private TypeLocationService typeLocationService;
+
+   @Mock
+   private TypeParsingService typeParsingService;
+
+   @Mock
+   private FileManager fileManager;
+
+   @InjectMocks
+   private MergeableOperationsImpl operations;
+
+   @Before
+   public void setUp() {
+      Set<ClassOrInterfaceTypeDetails> types = new LinkedHashSet<ClassOrInterfaceTypeDetails>();
+      for (String name : Arrays.asList("com.example.domain.Post", "com.example.domain.blog.BlogPost",
+            "com.example.domainx.Tweet", "com.example.Comment")){
+         types.add(newJavaBean(name));
+      }
+      when(typeLocationService.findClassesOrInterfaceDetailsWithAnnotation(ROO_JAVA_BEAN)).thenReturn(types);
+      when(typeLocationService.getPhysicalTypeCanonicalPath(anyString())).thenAnswer(new Answer<String>() {
+         public String answer(InvocationOnMock invocation) {
+            return PhysicalTypeIdentifier.getJavaType((String) invocation.getArguments()[0]).getFullyQualifiedTypeName();
+         }
+      });
+      when(typeParsingService.getCompilationUnitContents(any(ClassOrInterfaceTypeDetails.class))).thenReturn("");
+   }
+
+   @Test
+   public void testAnnotateAllWithPackage() {
+      // Sub-packages are included, packages only sharing the prefix of the name are not.
+      operations.annotateAll(new JavaPackage("com.example.domain"), null);
+      Assert.assertEquals(Arrays.asList("com.example.domain.Post", "com.example.domain.blog.BlogPost"), getWrittenTypes());
+   }
+
+   @Test
+   public void testAnnotateAllWithPattern() {
+      // The whole simple name has to match.
+      operations.annotateAll(null, ".*Post");
+      Assert.assertEquals(Arrays.asList("com.example.domain.Post", "com.example.domain.blog.BlogPost"), getWrittenTypes());
+   }
+
+   @Test
+   public void testAnnotateAllWithPartialPattern() {
+      operations.annotateAll(new JavaPackage("com.example"), "Twee");
+      verifyZeroInteractions(fileManager);
+   }
+
+   @Test
+   public void testAnnotateAllWithInvalidPattern() {
+      try {
+         operations.annotateAll(null, "*Post");
+         Assert.fail("An invalid pattern should have been refused");
+      } catch (IllegalArgumentException e){
+         Assert.assertEquals("Pattern '*Post' is not a valid regular expression", e.getMessage());
+      }
+      verifyZeroInteractions(fileManager);
+   }
+
+   /**
+    * Get the types written by the file manager, in writing order. Writes are expected to be deferred.
+    * @return The fully qualified names of the types
+    */
+   private List<String> getWrittenTypes() {
+      ArgumentCaptor<String> fileIdentifiers = ArgumentCaptor.forClass(String.class);
+      verify(fileManager, atLeastOnce()).createOrUpdateTextFileIfRequired(fileIdentifiers.capture(), anyString(), eq(false));
+      return new ArrayList<String>(fileIdentifiers.getAllValues());
+   }
+
+   /**
+    * Build the details of a class annotated with @RooJavaBean.
+    * @param name The fully qualified name of the class
+    * @return The details of the class
+    */
+   private ClassOrInterfaceTypeDetails newJavaBean(String name) {
+      final JavaType javaType = new JavaType(name);
+      final ClassOrInterfaceTypeDetailsBuilder builder = new ClassOrInterfaceTypeDetailsBuilder(
+            PhysicalTypeIdentifier.createIdentifier(javaType, LogicalPath.getInstance(Path.SRC_MAIN_JAVA, "")),
+            Modifier.PUBLIC, javaType, PhysicalTypeCategory.CLASS);
+      builder.addAnnotation(new AnnotationMetadataBuilder(ROO_JAVA_BEAN));
+      return builder.build();
+   }
+}
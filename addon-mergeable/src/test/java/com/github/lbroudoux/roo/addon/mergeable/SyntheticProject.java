@@ -0,0 +1,355 @@
+package com.github.lbroudoux.roo.addon.mergeable;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.roo.model.JdkJavaType.BIG_DECIMAL;
+import static org.springframework.roo.model.JdkJavaType.DATE;
+import static org.springframework.roo.model.JdkJavaType.SET;
+import static org.springframework.roo.model.JpaJavaType.ID;
+import static org.springframework.roo.model.JpaJavaType.MANY_TO_ONE;
+import static org.springframework.roo.model.JpaJavaType.ONE_TO_MANY;
+import static org.springframework.roo.model.JpaJavaType.VERSION;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.roo.addon.plural.PluralMetadata;
+import org.springframework.roo.classpath.PhysicalTypeCategory;
+import org.springframework.roo.classpath.PhysicalTypeIdentifier;
+import org.springframework.roo.classpath.PhysicalTypeMetadata;
+import org.springframework.roo.classpath.details.BeanInfoUtils;
+import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetails;
+import org.springframework.roo.classpath.details.ClassOrInterfaceTypeDetailsBuilder;
+import org.springframework.roo.classpath.details.DefaultPhysicalTypeMetadata;
+import org.springframework.roo.classpath.details.FieldMetadata;
+import org.springframework.roo.classpath.details.FieldMetadataBuilder;
+import org.springframework.roo.classpath.details.MemberFindingUtils;
+import org.springframework.roo.classpath.details.MethodMetadata;
+import org.springframework.roo.classpath.details.MethodMetadataBuilder;
+import org.springframework.roo.classpath.details.annotations.AnnotatedJavaType;
+import org.springframework.roo.classpath.details.annotations.AnnotationAttributeValue;
+import org.springframework.roo.classpath.details.annotations.AnnotationMetadataBuilder;
+import org.springframework.roo.classpath.details.annotations.ArrayAttributeValue;
+import org.springframework.roo.classpath.details.annotations.EnumAttributeValue;
+import org.springframework.roo.classpath.details.annotations.StringAttributeValue;
+import org.springframework.roo.classpath.itd.InvocableMemberBodyBuilder;
+import org.springframework.roo.classpath.persistence.PersistenceMemberLocator;
+import org.springframework.roo.classpath.scanner.MemberDetails;
+import org.springframework.roo.classpath.scanner.MemberDetailsImpl;
+import org.springframework.roo.classpath.scanner.MemberDetailsScanner;
+import org.springframework.roo.metadata.MetadataService;
+import org.springframework.roo.model.DataType;
+import org.springframework.roo.model.EnumDetails;
+import org.springframework.roo.model.JavaSymbolName;
+import org.springframework.roo.model.JavaType;
+import org.springframework.roo.project.LogicalPath;
+import org.springframework.roo.project.Path;
+import org.springframework.roo.project.ProjectOperations;
+
+/**
+ * A synthetic Roo project made of JPA entities annotated with {@link RooMergeable}, built in memory with the
+ * Roo metadata builders so that {@link MergeableMetadataProvider} can be tested and benchmarked without a running
+ * shell. Each entity has an identifier, a version and the requested number of fields cycling through strings
+ * (merged with the {@link MergeStrategy#LONGEST} strategy), numbers, dates, many-to-one references to another
+ * entity and one-to-many collections, each one having its accessor and mutator. Entities may also declare methods
+ * named after the generated ones, for stressing the checks done before generating each method.
+ *
+ * @since 1.1.0
+ */
+public class SyntheticProject {
+
+   private static final String PACKAGE = "com.example.domain.";
+   private static final JavaType ROO_MERGEABLE = new JavaType(RooMergeable.class.getName());
+   private static final JavaType ROO_MERGEABLE_FIELD = new JavaType(RooMergeableField.class.getName());
+   private static final JavaType MERGE_STRATEGY = new JavaType(MergeStrategy.class.getName());
+   static final String[] GENERATED_METHOD_NAMES = { "merge", "mergeAll", "mergeFields", "wasMerged",
+         "findMergeCandidates", "findMergeAncestors", "countMergedSources" };
+
+   private final LogicalPath path = LogicalPath.getInstance(Path.SRC_MAIN_JAVA, "");
+   private final List<Entity> entities = new ArrayList<Entity>();
+   private final Map<JavaType, Entity> entitiesByType = new HashMap<JavaType, Entity>();
+
+   /**
+    * Build the project.
+    * @param entityCount The number of entities
+    * @param fieldCount The number of mergeable fields of each entity
+    * @param extraMethodCount The number of methods declared by each entity in addition to accessors and mutators
+    */
+   public SyntheticProject(int entityCount, int fieldCount, int extraMethodCount) {
+      for (int i = 0; i < entityCount; i++){
+         final Entity entity = new Entity(new JavaType(PACKAGE + "Entity" + i),
+               new JavaType(PACKAGE + "Entity" + ((i + 1) % entityCount)), fieldCount, extraMethodCount);
+         entities.add(entity);
+         entitiesByType.put(entity.javaType, entity);
+      }
+   }
+
+   public List<Entity> getEntities() {
+      return entities;
+   }
+
+   /**
+    * Create a provider wired to mocks of the Roo services it uses, answering from this project. The provider
+    * comes with an empty metadata cache.
+    * @return A new provider
+    */
+   public MergeableMetadataProvider newProvider() {
+      return newProvider(newMemberDetailsScanner());
+   }
+
+   /**
+    * Create a mock of the member details scanner, answering the members of the entities of this project.
+    * @return A new scanner
+    */
+   public MemberDetailsScanner newMemberDetailsScanner() {
+      final MemberDetailsScanner memberDetailsScanner = mock(MemberDetailsScanner.class);
+      when(memberDetailsScanner.getMemberDetails(anyString(), any(ClassOrInterfaceTypeDetails.class))).thenAnswer(new Answer<MemberDetails>() {
+         public MemberDetails answer(InvocationOnMock invocation) {
+            return entitiesByType.get(((ClassOrInterfaceTypeDetails) invocation.getArguments()[1]).getName()).memberDetails;
+         }
+      });
+      return memberDetailsScanner;
+   }
+
+   /**
+    * Create a provider wired to the given member details scanner and to mocks of the other Roo services it uses,
+    * answering from this project. The provider comes with an empty metadata cache.
+    * @param memberDetailsScanner The scanner of governor members
+    * @return A new provider
+    */
+   public MergeableMetadataProvider newProvider(MemberDetailsScanner memberDetailsScanner) {
+      final MergeableMetadataProvider provider = new MergeableMetadataProvider();
+
+      final PersistenceMemberLocator persistenceMemberLocator = mock(PersistenceMemberLocator.class);
+      when(persistenceMemberLocator.getIdentifierFields(any(JavaType.class))).thenAnswer(new Answer<List<FieldMetadata>>() {
+         public List<FieldMetadata> answer(InvocationOnMock invocation) {
+            return Collections.singletonList(getEntity(invocation).identifierField);
+         }
+      });
+      when(persistenceMemberLocator.getVersionField(any(JavaType.class))).thenAnswer(new Answer<FieldMetadata>() {
+         public FieldMetadata answer(InvocationOnMock invocation) {
+            return getEntity(invocation).versionField;
+         }
+      });
+      when(persistenceMemberLocator.getIdentifierAccessor(any(JavaType.class))).thenAnswer(new Answer<MethodMetadata>() {
+         public MethodMetadata answer(InvocationOnMock invocation) {
+            final Entity entity = getEntity(invocation);
+            return entity != null ? entity.identifierAccessor : null;
+         }
+      });
+      when(persistenceMemberLocator.getVersionAccessor(any(JavaType.class))).thenAnswer(new Answer<MethodMetadata>() {
+         public MethodMetadata answer(InvocationOnMock invocation) {
+            return getEntity(invocation).versionAccessor;
+         }
+      });
+
+      final PluralMetadata pluralMetadata = mock(PluralMetadata.class);
+      when(pluralMetadata.getPlural()).thenReturn("Entities");
+      final MetadataService metadataService = mock(MetadataService.class);
+      when(metadataService.get(anyString())).thenReturn(pluralMetadata);
+
+      final ProjectOperations projectOperations = mock(ProjectOperations.class);
+      when(projectOperations.isFocusedProjectAvailable()).thenReturn(false);
+
+      inject(provider, "memberDetailsScanner", memberDetailsScanner);
+      inject(provider, "persistenceMemberLocator", persistenceMemberLocator);
+      inject(provider, "metadataService", metadataService);
+      inject(provider, "projectOperations", projectOperations);
+      return provider;
+   }
+
+   /**
+    * Ask provider for the metadata of an entity, as Roo does when the entity changes.
+    * @param provider The provider to ask
+    * @param entity The governor entity
+    * @return The metadata of entity
+    */
+   public MergeableMetadata getMetadata(MergeableMetadataProvider provider, Entity entity) {
+      return getMetadata(provider, entity, entity.physicalTypeMetadata);
+   }
+
+   /**
+    * Ask provider for the metadata of an entity, given the physical type metadata of its governor.
+    * @param provider The provider to ask
+    * @param entity The governor entity
+    * @param physicalTypeMetadata The physical type metadata of the governor
+    * @return The metadata of entity
+    */
+   public MergeableMetadata getMetadata(MergeableMetadataProvider provider, Entity entity, PhysicalTypeMetadata physicalTypeMetadata) {
+      return (MergeableMetadata) provider.getMetadata(entity.metadataId, entity.aspectName, physicalTypeMetadata, null);
+   }
+
+   /**
+    * Build the metadata of an entity directly, from the analysis of its fields known by construction.
+    * @param entity The governor entity
+    * @return The metadata of entity
+    */
+   public MergeableMetadata buildMetadata(Entity entity) {
+      return new MergeableMetadata(entity.metadataId, entity.aspectName, entity.physicalTypeMetadata,
+            entity.identifierField, entity.versionField, BeanInfoUtils.getMutatorMethodName(entity.versionField),
+            entity.mergeableFields, entity.fieldAccessors, entity.fieldStrategies, Collections.<JavaSymbolName, JavaType>emptyMap(),
+            entity.collectionFields, entity.collectionMappedBy, Collections.<JavaSymbolName, JavaSymbolName>emptyMap(),
+            new MergeableAnnotationValues(entity.physicalTypeMetadata), "Entities", false);
+   }
+
+   private Entity getEntity(InvocationOnMock invocation) {
+      return entitiesByType.get((JavaType) invocation.getArguments()[0]);
+   }
+
+   /** Set a service reference that OSGi would have injected into the provider. */
+   private static void inject(Object target, String name, Object value) {
+      for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()){
+         try {
+            final Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+            return;
+         } catch (NoSuchFieldException nsfe){
+            // Look into superclass.
+         } catch (IllegalAccessException iae){
+            throw new IllegalStateException(iae);
+         }
+      }
+      throw new IllegalArgumentException("No field '" + name + "' found into " + target.getClass().getName());
+   }
+
+   /** A synthetic entity together with the expected outcome of its analysis. */
+   public class Entity {
+      private final JavaType javaType;
+      private final JavaType aspectName;
+      private final String metadataId;
+      private final PhysicalTypeMetadata physicalTypeMetadata;
+      private final MemberDetails memberDetails;
+      private final FieldMetadata identifierField;
+      private final FieldMetadata versionField;
+      private final MethodMetadata identifierAccessor;
+      private final MethodMetadata versionAccessor;
+      private final List<FieldMetadata> mergeableFields = new ArrayList<FieldMetadata>();
+      private final List<FieldMetadata> collectionFields = new ArrayList<FieldMetadata>();
+      private final Map<JavaSymbolName, JavaSymbolName> fieldAccessors = new HashMap<JavaSymbolName, JavaSymbolName>();
+      private final Map<JavaSymbolName, MergeStrategy> fieldStrategies = new HashMap<JavaSymbolName, MergeStrategy>();
+      private final Map<JavaSymbolName, String> collectionMappedBy = new HashMap<JavaSymbolName, String>();
+
+      private Entity(JavaType javaType, JavaType referencedType, int fieldCount, int extraMethodCount) {
+         this.javaType = javaType;
+         this.aspectName = new JavaType(javaType.getFullyQualifiedTypeName() + "_Roo_Mergeable");
+         this.metadataId = MergeableMetadata.createIdentifier(javaType, path);
+         final String physicalTypeId = PhysicalTypeIdentifier.createIdentifier(javaType, path);
+
+         final ClassOrInterfaceTypeDetailsBuilder builder = new ClassOrInterfaceTypeDetailsBuilder(physicalTypeId,
+               Modifier.PUBLIC, javaType, PhysicalTypeCategory.CLASS);
+         final List<AnnotationAttributeValue<?>> matchOn = new ArrayList<AnnotationAttributeValue<?>>();
+         matchOn.add(new ArrayAttributeValue<StringAttributeValue>(new JavaSymbolName("matchOn"),
+               Arrays.asList(new StringAttributeValue(new JavaSymbolName("value"), "field0"))));
+         builder.addAnnotation(new AnnotationMetadataBuilder(ROO_MERGEABLE, matchOn));
+
+         identifierField = addProperty(builder, physicalTypeId, "id", JavaType.LONG_OBJECT, new AnnotationMetadataBuilder(ID));
+         versionField = addProperty(builder, physicalTypeId, "version", JavaType.INT_OBJECT, new AnnotationMetadataBuilder(VERSION));
+         for (int i = 0; i < fieldCount; i++){
+            final String fieldName = "field" + i;
+            final FieldMetadata field;
+            switch (i % 6){
+               case 0:
+                  final List<AnnotationAttributeValue<?>> strategy = new ArrayList<AnnotationAttributeValue<?>>();
+                  strategy.add(new EnumAttributeValue(new JavaSymbolName("strategy"),
+                        new EnumDetails(MERGE_STRATEGY, new JavaSymbolName(MergeStrategy.LONGEST.name()))));
+                  field = addProperty(builder, physicalTypeId, fieldName, JavaType.STRING,
+                        new AnnotationMetadataBuilder(ROO_MERGEABLE_FIELD, strategy));
+                  fieldStrategies.put(field.getFieldName(), MergeStrategy.LONGEST);
+                  break;
+               case 1:
+                  field = addProperty(builder, physicalTypeId, fieldName, JavaType.INT_OBJECT, null);
+                  break;
+               case 2:
+                  field = addProperty(builder, physicalTypeId, fieldName, DATE, null);
+                  break;
+               case 3:
+                  field = addProperty(builder, physicalTypeId, fieldName, BIG_DECIMAL, null);
+                  break;
+               case 4:
+                  field = addProperty(builder, physicalTypeId, fieldName, referencedType, new AnnotationMetadataBuilder(MANY_TO_ONE));
+                  break;
+               default:
+                  final List<AnnotationAttributeValue<?>> mappedBy = new ArrayList<AnnotationAttributeValue<?>>();
+                  mappedBy.add(new StringAttributeValue(new JavaSymbolName("mappedBy"), "field4"));
+                  field = addProperty(builder, physicalTypeId, fieldName,
+                        new JavaType(SET.getFullyQualifiedTypeName(), 0, DataType.TYPE, null, Arrays.asList(referencedType)),
+                        new AnnotationMetadataBuilder(ONE_TO_MANY, mappedBy));
+                  collectionFields.add(field);
+                  collectionMappedBy.put(field.getFieldName(), "field4");
+                  fieldAccessors.put(field.getFieldName(), BeanInfoUtils.getAccessorMethodName(field));
+                  continue;
+            }
+            mergeableFields.add(field);
+            fieldAccessors.put(field.getFieldName(), BeanInfoUtils.getAccessorMethodName(field));
+         }
+         fieldAccessors.put(identifierField.getFieldName(), BeanInfoUtils.getAccessorMethodName(identifierField));
+         fieldAccessors.put(versionField.getFieldName(), BeanInfoUtils.getAccessorMethodName(versionField));
+
+         // Methods named after the generated ones but with other parameters, so that each check has to compare them.
+         for (int i = 0; i < extraMethodCount; i++){
+            final List<JavaType> parameterTypes = Collections.nCopies(i / GENERATED_METHOD_NAMES.length + 1, JavaType.STRING);
+            final List<JavaSymbolName> parameterNames = new ArrayList<JavaSymbolName>();
+            for (int j = 0; j < parameterTypes.size(); j++){
+               parameterNames.add(new JavaSymbolName("arg" + j));
+            }
+            builder.addMethod(new MethodMetadataBuilder(physicalTypeId, Modifier.PUBLIC,
+                  new JavaSymbolName(GENERATED_METHOD_NAMES[i % GENERATED_METHOD_NAMES.length]), JavaType.VOID_PRIMITIVE,
+                  AnnotatedJavaType.convertFromJavaTypes(parameterTypes), parameterNames, new InvocableMemberBodyBuilder()));
+         }
+
+         final ClassOrInterfaceTypeDetails details = builder.build();
+         physicalTypeMetadata = new DefaultPhysicalTypeMetadata(physicalTypeId,
+               "/" + javaType.getFullyQualifiedTypeName().replace('.', '/') + ".java", details);
+         memberDetails = new MemberDetailsImpl(Arrays.asList(details));
+         identifierAccessor = MemberFindingUtils.getMethod(memberDetails, BeanInfoUtils.getAccessorMethodName(identifierField),
+               new ArrayList<JavaType>());
+         versionAccessor = MemberFindingUtils.getMethod(memberDetails, BeanInfoUtils.getAccessorMethodName(versionField),
+               new ArrayList<JavaType>());
+      }
+
+      public PhysicalTypeMetadata getPhysicalTypeMetadata() {
+         return physicalTypeMetadata;
+      }
+
+      /**
+       * Parse the governor again, as Roo does when its source file is saved without any change.
+       * @return New physical type metadata of the governor, holding a copy of its details
+       */
+      public PhysicalTypeMetadata reparse() {
+         return new DefaultPhysicalTypeMetadata(physicalTypeMetadata.getId(), physicalTypeMetadata.getPhysicalLocationCanonicalPath(),
+               new ClassOrInterfaceTypeDetailsBuilder(physicalTypeMetadata.getMemberHoldingTypeDetails()).build());
+      }
+
+      /** Add a private field together with its public accessor and mutator. */
+      private FieldMetadata addProperty(ClassOrInterfaceTypeDetailsBuilder builder, String physicalTypeId, String name,
+            JavaType type, AnnotationMetadataBuilder annotation) {
+         final FieldMetadataBuilder fieldBuilder = new FieldMetadataBuilder(physicalTypeId, Modifier.PRIVATE,
+               annotation != null ? Arrays.asList(annotation) : new ArrayList<AnnotationMetadataBuilder>(),
+               new JavaSymbolName(name), type);
+         final FieldMetadata field = fieldBuilder.build();
+         builder.addField(fieldBuilder);
+
+         InvocableMemberBodyBuilder bodyBuilder = new InvocableMemberBodyBuilder();
+         bodyBuilder.appendFormalLine("return this." + name + ";");
+         builder.addMethod(new MethodMetadataBuilder(physicalTypeId, Modifier.PUBLIC,
+               BeanInfoUtils.getAccessorMethodName(field), type, bodyBuilder));
+         bodyBuilder = new InvocableMemberBodyBuilder();
+         bodyBuilder.appendFormalLine("this." + name + " = " + name + ";");
+         builder.addMethod(new MethodMetadataBuilder(physicalTypeId, Modifier.PUBLIC,
+               BeanInfoUtils.getMutatorMethodName(field), JavaType.VOID_PRIMITIVE,
+               AnnotatedJavaType.convertFromJavaTypes(type), Arrays.asList(new JavaSymbolName(name)), bodyBuilder));
+         return field;
+      }
+   }
+}